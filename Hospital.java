@@ -1,22 +1,92 @@
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.TableCellRenderer;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
 import java.sql.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.Collator;
+import java.text.NumberFormat;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class Hospital {
     private static final String DB_URL = "jdbc:postgresql://localhost:5432/hospital_db";
     private static final String DB_USER = "postgres";
     private static final String DB_PASSWORD = "12345";
 
+    private static final String[] TABLES = {"hospitals", "departments", "positions", "doctors", "patients", "diagnoses", "appointments"};
+    // Небольшие справочники: грузятся в фоне при старте, дают подписи FK в таблице и выпадающих списках
+    private static final String[] REFERENCE_TABLES = {"hospitals", "departments", "positions", "doctors", "diagnoses"};
+    // Ссылки на остальные (большие) таблицы: сколько записей показывать в выпадающем списке редактора
+    private static final int EDITOR_ITEMS_LIMIT = 500;
+
+    // Замер холодного старта; -Dhospital.exitAfterStartup=true завершает процесс после первой загрузки
+    // таблицы (используется обучающим прогоном AppCDS, см. scripts/appcds.sh)
+    private static final long MAIN_STARTED_NANOS = System.nanoTime();
+    private static final boolean EXIT_AFTER_STARTUP = Boolean.getBoolean("hospital.exitAfterStartup");
+
     private JFrame frame;
     private JTable table;
-    private DefaultTableModel tableModel;
+    private ResultBufferTableModel tableModel;
     private String currentTable = "patients";
 
     // UI controls for filters/sort
@@ -31,6 +101,57 @@ public class Hospital {
     private String currentSortColumn = "";
     private String currentSortOrder = "ASC";
 
+    // Metadata/reference caches: information_schema and small dictionaries are read once, warmed on startup
+    private final Map<String, List<ColumnInfo>> structureCache = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, ForeignKeyInfo>> foreignKeyCache = new ConcurrentHashMap<>();
+    private final Map<String, ReferenceDictionary> dictionaries = new ConcurrentHashMap<>();
+
+    // Background loading (startup warm-up and grid queries) keeps the EDT free
+    private final ExecutorService background = Executors.newFixedThreadPool(4, r -> {
+        Thread t = new Thread(r, "hospital-bg");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ShardRouter shards = ShardRouter.configure(SHARDS_CONFIG);
+    // Домашний шард (без шардирования — единственная база): метаданные, справочники, реплицируемые таблицы
+    private final ConnectionPool pool = shards.home();
+    // Журнал изменений пишется в домашнюю базу фоновым потоком
+    private final AuditLog audit = new AuditLog(pool);
+    // Подзапросы отчётов: по потоку на соединение пула
+    private final ExecutorService queryExecutor = Executors.newFixedThreadPool(POOL_SIZE, r -> {
+        Thread t = new Thread(r, "hospital-query");
+        t.setDaemon(true);
+        return t;
+    });
+    private long refreshGeneration = 0;
+    private boolean firstLoadLogged = false;
+
+    // Индекс поиска пациентов. Построение, свои записи и подгрузка чужих идут по порядку в одном
+    // потоке: записи, сделанные до готовности индекса, просто ждут в очереди
+    private volatile PatientSearchIndex patientIndex;
+    private final ScheduledExecutorService indexExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "hospital-index");
+        t.setDaemon(true);
+        return t;
+    });
+    private int patientIndexRefreshes; // только поток индекса
+    private boolean patientSearchActive = false;
+    private String patientSearchFilter; // значение фильтра по фамилии, выставленное поиском (индекс не готов)
+
+    public Hospital() {
+        this(false);
+    }
+
+    /** headless — без окна (нагрузочный тест): из слушателей записи остаётся только журнал изменений. */
+    Hospital(boolean headless) {
+        if (!headless) {
+            rowChangeListeners.add(this::reloadDictionary);
+            rowChangeListeners.add(this::updatePatientIndex);
+            rowChangeListeners.add(this::invalidatePatientHistory);
+        }
+        rowChangeListeners.add(audit::rowChanged);
+    }
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> new Hospital().createAndShowGUI());
     }
@@ -42,20 +163,34 @@ public class Hospital {
 
         // === Top panel: table selector ===
         JPanel topPanel = new JPanel(new FlowLayout());
-        String[] tables = {"hospitals", "departments", "positions", "doctors", "patients", "diagnoses", "appointments"};
-        for (String tbl : tables) {
+        for (String tbl : TABLES) {
             JButton btn = new JButton(capitalize(tbl));
             btn.addActionListener(e -> {
                 this.currentTable = tbl;
+                patientSearchActive = false;
                 resetFilters();
                 refreshTable();
             });
             topPanel.add(btn);
         }
 
+        // Поиск пациента по ФИО / ИНН / телефону — по мере ввода, через индекс в памяти
+        topPanel.add(new JLabel("Поиск пациента:"));
+        JTextField patientSearchField = new JTextField(18);
+        patientSearchField.setToolTipText("Фамилия, имя, отчество, ИНН или телефон (можно начало слова)");
+        Timer searchDebounce = new Timer(150, e -> searchPatients(patientSearchField.getText()));
+        searchDebounce.setRepeats(false);
+        patientSearchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override public void insertUpdate(DocumentEvent e) { searchDebounce.restart(); }
+            @Override public void removeUpdate(DocumentEvent e) { searchDebounce.restart(); }
+            @Override public void changedUpdate(DocumentEvent e) { searchDebounce.restart(); }
+        });
+        topPanel.add(patientSearchField);
+
         // === Main table ===
-        tableModel = new DefaultTableModel();
+        tableModel = new ResultBufferTableModel();
         table = new JTable(tableModel);
+        table.setDefaultRenderer(Object.class, new ForeignKeyCellRenderer());
         JScrollPane scrollPane = new JScrollPane(table);
 
         // === Bottom panel: actions + filters ===
@@ -67,25 +202,30 @@ public class Hospital {
         JButton btnEdit = new JButton("Изменить");
         JButton btnDelete = new JButton("Удалить");
         JButton btnRefresh = new JButton("Обновить");
+        JButton btnHistory = new JButton("История пациента");
+        JButton btnNotesSearch = new JButton("Поиск по заметкам");
 
         btnAdd.addActionListener(e -> openRecordEditor(null));
         btnEdit.addActionListener(e -> openRecordEditor(getSelectedRowData()));
         btnDelete.addActionListener(this::deleteSelectedRecord);
         btnRefresh.addActionListener(e -> refreshTable());
+        btnHistory.addActionListener(e -> showPatientHistory());
+        btnNotesSearch.addActionListener(e -> showNotesSearch());
 
         actionPanel.add(btnAdd);
         actionPanel.add(btnEdit);
         actionPanel.add(btnDelete);
         actionPanel.add(btnRefresh);
+        actionPanel.add(btnHistory);
+        actionPanel.add(btnNotesSearch);
         bottomPanel.add(actionPanel, BorderLayout.NORTH);
 
         // Filter & sort controls
         JPanel filterPanel = new JPanel(new GridLayout(2, 5, 5, 5));
 
+        // Списки колонок заполняются, когда метаданные придут из фона (см. loadInitialData)
         filterPanel.add(new JLabel("Фильтр по полю:"));
-        List<String> cols = getTableColumns(currentTable);
-        filterColumnCombo = new JComboBox<>(cols.toArray(new String[0]));
-        if (!cols.isEmpty()) filterColumnCombo.setSelectedIndex(Math.min(1, cols.size() - 1));
+        filterColumnCombo = new JComboBox<>();
         filterPanel.add(filterColumnCombo);
 
         filterPanel.add(new JLabel("Значение:"));
@@ -100,8 +240,7 @@ public class Hospital {
         filterPanel.add(btnClearFilter);
 
         filterPanel.add(new JLabel("Сортировка по:"));
-        sortColumnCombo = new JComboBox<>(cols.toArray(new String[0]));
-        if (!cols.isEmpty()) sortColumnCombo.setSelectedIndex(0);
+        sortColumnCombo = new JComboBox<>();
         filterPanel.add(sortColumnCombo);
 
         filterPanel.add(new JLabel("Порядок:"));
@@ -126,12 +265,409 @@ public class Hospital {
         fullBottomPanel.add(Box.createVerticalStrut(10));
         fullBottomPanel.add(createReportsPanel());  // ← отчёты НИЖЕ фильтров
 
+        // Сбои журнала изменений: редактирование продолжается, но пользователь должен о них знать
+        JLabel auditStatus = new JLabel();
+        auditStatus.setForeground(Color.RED);
+        auditStatus.setVisible(false);
+        fullBottomPanel.add(auditStatus);
+        new Timer(1000, e -> {
+            String problem = audit.problem();
+            if (!Objects.equals(problem, auditStatus.getText())) auditStatus.setText(problem);
+            auditStatus.setVisible(problem != null);
+        }).start();
+
         frame.add(fullBottomPanel, BorderLayout.SOUTH);
 
         frame.setLocationRelativeTo(null);
         frame.setVisible(true);
+        logStartup("окно показано");
+
+        loadInitialData();
+    }
+
+    // ————————————————————————————————————————————————
+    // Startup
+    // ————————————————————————————————————————————————
+
+    /**
+     * Метаданные текущей таблицы и первая выборка грузятся в фоне, параллельно
+     * прогреваются соединение, метаданные остальных таблиц и справочники.
+     */
+    private void loadInitialData() {
+        String startTable = currentTable;
+        CompletableFuture.runAsync(() -> pool.warmUp(2), background);
+        CompletableFuture.supplyAsync(() -> getTableColumns(startTable), background)
+                .thenAccept(cols -> SwingUtilities.invokeLater(() -> {
+                    if (startTable.equals(currentTable)) fillColumnCombos(cols);
+                    refreshTable();
+                }));
+
+        for (String t : TABLES) {
+            if (t.equals(startTable)) continue;
+            CompletableFuture.runAsync(() -> {
+                getTableStructure(t);
+                getForeignKeys(t);
+            }, background);
+        }
+        for (String t : REFERENCE_TABLES) {
+            CompletableFuture.runAsync(() -> getDictionary(t), background)
+                    .thenRun(() -> SwingUtilities.invokeLater(table::repaint));
+        }
+        buildPatientIndex();
+    }
+
+    private static void logStartup(String stage) {
+        long sinceMain = (System.nanoTime() - MAIN_STARTED_NANOS) / 1_000_000;
+        long sinceJvm = ManagementFactory.getRuntimeMXBean().getUptime();
+        System.out.printf("[startup] %s: %d мс от main(), %d мс от запуска JVM%n", stage, sinceMain, sinceJvm);
+    }
+
+    // ————————————————————————————————————————————————
+    // Пул соединений и параллельные запросы
+    // ————————————————————————————————————————————————
+
+    private static final int POOL_SIZE = Integer.getInteger("hospital.poolSize", 8);
+    private static final int REPORT_QUERY_TIMEOUT_SEC = 20;
+    private static final int REPORT_DEADLINE_SEC = 30;
+
+    /** Не больше maxSize соединений; close() у выданного прокси откатывает транзакцию и возвращает соединение в пул. */
+    private static class ConnectionPool {
+        private final String url, user, password;
+        private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+        private final Semaphore permits;
+
+        ConnectionPool(String url, String user, String password, int maxSize) {
+            this.url = url; this.user = user; this.password = password;
+            this.permits = new Semaphore(maxSize, true);
+        }
+
+        Connection getConnection() throws SQLException {
+            try {
+                if (!permits.tryAcquire(30, TimeUnit.SECONDS)) throw new SQLException("Нет свободных соединений в пуле");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Ожидание соединения прервано", e);
+            }
+            try {
+                Connection real;
+                while ((real = idle.poll()) != null && !real.isValid(1)) closeQuietly(real);
+                if (real == null) real = connect();
+                return wrap(real);
+            } catch (SQLException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        /** Заранее открывает до n соединений (прогрев при старте). */
+        void warmUp(int n) {
+            for (int i = 0; i < n && idle.size() < n; i++) {
+                try {
+                    idle.offer(connect());
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+
+        /** Сессия помечается пользователем ОС: триггер аудита каскадных изменений пишет его в app_user. */
+        Connection connect() throws SQLException {
+            Properties props = new Properties();
+            props.setProperty("user", user);
+            props.setProperty("password", password);
+            String appUser = System.getProperty("user.name", "?").replace("\\", "\\\\").replace(" ", "\\ ");
+            props.setProperty("options", "-c hospital.app_user=" + appUser);
+            return DriverManager.getConnection(url, props);
+        }
+
+        private Connection wrap(Connection real) {
+            boolean[] closed = {false};
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "close" -> {
+                                if (!closed[0]) {
+                                    closed[0] = true;
+                                    release(real);
+                                }
+                                return null;
+                            }
+                            case "isClosed" -> {
+                                return closed[0] || real.isClosed();
+                            }
+                            default -> {
+                                if (closed[0]) throw new SQLException("Соединение уже возвращено в пул");
+                                if ("unwrap".equals(method.getName())) {
+                                    Class<?> iface = (Class<?>) args[0];
+                                    if (iface.isInstance(proxy)) return proxy;
+                                    return guard(iface, invoke(real, method, args), (Connection) proxy);
+                                }
+                                Object result = invoke(real, method, args);
+                                Class<?> type = method.getReturnType();
+                                if (type == Statement.class || type == PreparedStatement.class
+                                        || type == CallableStatement.class || type == DatabaseMetaData.class) {
+                                    return guard(type, result, (Connection) proxy);
+                                }
+                                return result;
+                            }
+                        }
+                    });
+        }
+
+        /** Операторы, метаданные и unwrap — тоже через прокси: настоящее соединение наружу не попадает. */
+        private static Object guard(Class<?> iface, Object target, Connection owner) throws SQLException {
+            if (!iface.isInterface()) throw new SQLException("unwrap(" + iface.getName() + "): поддерживаются только интерфейсы");
+            return Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[]{iface}, (proxy, method, args) -> {
+                if ("getConnection".equals(method.getName()) && method.getParameterCount() == 0) return owner;
+                if ("unwrap".equals(method.getName())) {
+                    Class<?> inner = (Class<?>) args[0];
+                    return inner.isInstance(proxy) ? proxy : guard(inner, invoke(target, method, args), owner);
+                }
+                return invoke(target, method, args);
+            });
+        }
+
+        private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void release(Connection real) {
+            try {
+                if (!real.isClosed()) {
+                    if (!real.getAutoCommit()) {
+                        real.rollback();
+                        real.setAutoCommit(true);
+                    }
+                    idle.offer(real);
+                }
+            } catch (SQLException e) {
+                closeQuietly(real);
+            } finally {
+                permits.release();
+            }
+        }
+
+        private static void closeQuietly(Connection c) {
+            try {
+                c.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    /** Исходная ошибка из CompletableFuture — без обёртки CompletionException. */
+    private static Throwable unwrap(Throwable err) {
+        return err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+    }
+
+    @FunctionalInterface
+    private interface ResultSetReader<T> {
+        T read(ResultSet rs) throws SQLException;
+    }
+
+    /** Параллельные подзапросы одного отчёта; ошибка одного или истёкший срок отменяют остальные. */
+    class QueryScope {
+        private final Set<Statement> running = ConcurrentHashMap.newKeySet();
+        private volatile boolean cancelled;
+
+        <T> CompletableFuture<T> query(String sql, List<Object> params, ResultSetReader<T> reader) {
+            return query(pool, sql, params, reader);
+        }
+
+        /** Тот же запрос во всех шардах из targets параллельно; части — в порядке targets. */
+        <T> CompletableFuture<List<T>> queryAll(List<ConnectionPool> targets, String sql, List<Object> params,
+                                                ResultSetReader<T> reader) {
+            List<CompletableFuture<T>> parts = new ArrayList<>();
+            for (ConnectionPool target : targets) parts.add(query(target, sql, params, reader));
+            return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                List<T> results = new ArrayList<>();
+                for (CompletableFuture<T> part : parts) results.add(part.join());
+                return results;
+            });
+        }
+
+        <T> CompletableFuture<T> query(ConnectionPool target, String sql, List<Object> params, ResultSetReader<T> reader) {
+            return CompletableFuture.supplyAsync(() -> {
+                if (cancelled) throw new CancellationException();
+                try (Connection conn = target.getConnection();
+                     PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setQueryTimeout(REPORT_QUERY_TIMEOUT_SEC);
+                    for (int i = 0; i < params.size(); i++) stmt.setObject(i + 1, params.get(i));
+                    running.add(stmt);
+                    try {
+                        if (cancelled) throw new CancellationException();
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            return reader.read(rs);
+                        }
+                    } finally {
+                        running.remove(stmt);
+                    }
+                } catch (SQLException e) {
+                    cancelAll();
+                    throw new CompletionException(e);
+                }
+            }, queryExecutor);
+        }
+
+        void cancelAll() {
+            cancelled = true;
+            for (Statement stmt : running) {
+                try {
+                    stmt.cancel();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+
+        boolean isCancelled() { return cancelled; }
+    }
+
+    // ————————————————————————————————————————————————
+    // Шардирование по больницам
+    // ————————————————————————————————————————————————
+
+    // -Dhospital.shards=<файл> включает режим шардов (пример — shards.example.properties)
+    private static final String SHARDS_CONFIG = System.getProperty("hospital.shards");
+    // Строки этих таблиц живут в шарде своей больницы (столбец hospital_id); остальные таблицы
+    // реплицируются во все шарды
+    private static final Set<String> SHARDED_TABLES = Set.of("departments", "doctors", "appointments");
+    private static final Collator RU_COLLATOR = Collator.getInstance(new Locale("ru", "RU"));
+
+    /**
+     * Куда идут запросы: без конфигурации — одна база DB_URL, иначе пул на шард; первый шард — «домашний»
+     * (метаданные, реплицируемые таблицы). Реплики пишутся по очереди, без общей транзакции.
+     */
+    private static class ShardRouter {
+        private static final int MAX_SHARDS = 16;
+
+        private final boolean sharded;
+        private final List<ConnectionPool> pools = new ArrayList<>();
+        private final Map<Integer, ConnectionPool> byHospital = new HashMap<>();
+
+        private ShardRouter(boolean sharded) { this.sharded = sharded; }
+
+        /**
+         * Формат файла (номера шардов 1..16, user/password по умолчанию — как у DB_URL):
+         *   shard.1.url=jdbc:postgresql://localhost:5432/hospital_shard1
+         *   shard.1.hospitals=1,3
+         */
+        static ShardRouter configure(String path) {
+            if (path == null || path.isBlank()) {
+                ShardRouter single = new ShardRouter(false);
+                single.pools.add(new ConnectionPool(DB_URL, DB_USER, DB_PASSWORD, POOL_SIZE));
+                return single;
+            }
+            Properties props = new Properties();
+            try (Reader in = Files.newBufferedReader(Paths.get(path))) {
+                props.load(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Не удалось прочитать конфигурацию шардов " + path, e);
+            }
+            ShardRouter router = new ShardRouter(true);
+            for (int n = 1; n <= MAX_SHARDS; n++) {
+                String prefix = "shard." + n + ".";
+                String url = props.getProperty(prefix + "url");
+                if (url == null) continue;
+                ConnectionPool shardPool = new ConnectionPool(url, props.getProperty(prefix + "user", DB_USER),
+                        props.getProperty(prefix + "password", DB_PASSWORD), POOL_SIZE);
+                router.pools.add(shardPool);
+                for (String h : props.getProperty(prefix + "hospitals", "").split(",")) {
+                    if (h.isBlank()) continue;
+                    if (router.byHospital.put(Integer.parseInt(h.trim()), shardPool) != null) {
+                        throw new IllegalStateException("Больница " + h.trim() + " назначена нескольким шардам");
+                    }
+                }
+            }
+            if (router.pools.isEmpty()) throw new IllegalStateException("В " + path + " нет ни одного shard.N.url");
+            return router;
+        }
+
+        ConnectionPool home() { return pools.get(0); }
+
+        List<ConnectionPool> all() { return pools; }
+
+        boolean replicated(String table) { return sharded && !SHARDED_TABLES.contains(table); }
+
+        /** Шарды, которые нужно опросить, чтобы прочитать всю таблицу. */
+        List<ConnectionPool> forRead(String table) {
+            return sharded && SHARDED_TABLES.contains(table) ? pools : List.of(home());
+        }
+
+        /** Шард строки шардированной таблицы — по её hospital_id; для остальных таблиц — домашний. */
+        ConnectionPool forRow(String table, Map<String, Object> row) throws SQLException {
+            if (!sharded || !SHARDED_TABLES.contains(table)) return home();
+            Object id = row.get("hospital_id");
+            if (id == null) throw new SQLException("Не указана больница (hospital_id) — шард не определён");
+            int hospitalId = id instanceof Number ? ((Number) id).intValue() : Integer.parseInt(id.toString().trim());
+            ConnectionPool target = byHospital.get(hospitalId);
+            if (target == null) {
+                throw new SQLException("Больница " + hospitalId + " не назначена ни одному шарду (" + SHARDS_CONFIG + ")");
+            }
+            return target;
+        }
+    }
+
+    /**
+     * Части шардов — подряд или k-путевым слиянием уже отсортированных (NULL — как в PostgreSQL,
+     * строки — по русской локали, как collation баз из scripts/shards.sh). Части закрываются.
+     */
+    static TableData mergeShardData(List<TableData> parts, int sortIndex, boolean descending) {
+        TableData first = parts.get(0);
+        ResultBuffer merged = new ResultBuffer(first.columnNames.length, RESULT_HEAP_BYTES);
+        try {
+            if (sortIndex < 0) {
+                for (TableData part : parts) {
+                    for (int r = 0; r < part.rows.rowCount(); r++) merged.append(part.rows.row(r));
+                }
+            } else {
+                Comparator<Object> values = (a, b) -> {
+                    if (a == null || b == null) return a == null ? (b == null ? 0 : 1) : -1;
+                    return compareValues(a, b);
+                };
+                if (descending) values = values.reversed();
+                Comparator<Object> byValue = values;
+                // Очередь: {номер части, номер строки}, сверху — наименьшее значение столбца сортировки
+                PriorityQueue<int[]> heads = new PriorityQueue<>((x, y) -> byValue.compare(
+                        parts.get(x[0]).rows.row(x[1])[sortIndex], parts.get(y[0]).rows.row(y[1])[sortIndex]));
+                for (int p = 0; p < parts.size(); p++) if (parts.get(p).rows.rowCount() > 0) heads.add(new int[]{p, 0});
+                while (!heads.isEmpty()) {
+                    int[] head = heads.poll();
+                    ResultBuffer rows = parts.get(head[0]).rows;
+                    merged.append(rows.row(head[1]));
+                    if (++head[1] < rows.rowCount()) heads.add(head);
+                }
+            }
+            merged.finish();
+        } catch (RuntimeException e) {
+            merged.close();
+            throw e;
+        } finally {
+            for (TableData part : parts) part.close();
+        }
+        return new TableData(first.columnNames, merged);
+    }
 
-        refreshTable(); // initial load
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compareValues(Object a, Object b) {
+        if (a instanceof String && b instanceof String) return RU_COLLATOR.compare(a, b);
+        if (a instanceof Comparable && a.getClass() == b.getClass()) return ((Comparable) a).compareTo(b);
+        return RU_COLLATOR.compare(a.toString(), b.toString());
+    }
+
+    /**
+     * Одна часть (один шард) возвращается как есть — в порядке ORDER BY из SQL; несколько
+     * объединяются и переупорядочиваются сравнением строк, которое строит order.
+     */
+    private static ReportResult mergeShardReports(List<ReportResult> parts, Function<ReportResult, Comparator<Integer>> order) {
+        if (parts.size() == 1) return parts.get(0);
+        ReportResult all = parts.get(0).emptyCopy();
+        for (ReportResult part : parts) all.appendAll(part);
+        return all.sorted(order.apply(all));
     }
 
     // ————————————————————————————————————————————————
@@ -145,26 +681,37 @@ public class Hospital {
 
     private List<String> getTableColumns(String table) {
         List<String> cols = new ArrayList<>();
-        String sql = "SELECT column_name FROM information_schema.columns WHERE table_name = ? ORDER BY ordinal_position";
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, table);
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) cols.add(rs.getString(1));
-            }
-        } catch (SQLException e) { e.printStackTrace(); }
+        for (ColumnInfo c : getTableStructure(table)) cols.add(c.name);
+        return cols;
+    }
+
+    /** Список столбцов для SELECT основной таблицы — те же, что в getTableStructure. */
+    private String selectList(String table) {
+        List<String> cols = getTableColumns(table);
+        return cols.isEmpty() ? "*" : String.join(", ", cols);
+    }
+
+    List<ColumnInfo> getTableStructure(String table) {
+        List<ColumnInfo> cached = structureCache.get(table);
+        if (cached != null) return cached;
+        List<ColumnInfo> cols = loadTableStructure(table);
+        if (!cols.isEmpty()) structureCache.put(table, cols);
         return cols;
     }
 
-    private List<ColumnInfo> getTableStructure(String table) {
+    private List<ColumnInfo> loadTableStructure(String table) {
         List<ColumnInfo> cols = new ArrayList<>();
-        String sql = "SELECT column_name, data_type FROM information_schema.columns WHERE table_name = ? ORDER BY ordinal_position";
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+        String sql = "SELECT column_name, data_type, is_generated FROM information_schema.columns WHERE table_name = ? ORDER BY ordinal_position";
+        try (Connection conn = pool.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setString(1, table);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    cols.add(new ColumnInfo(rs.getString(1), rs.getString(2).toLowerCase()));
+                    // tsvector-столбцы служат только полнотекстовому поиску: ни в таблице, ни в фильтрах их нет
+                    if ("tsvector".equals(rs.getString(2))) continue;
+                    ColumnInfo col = new ColumnInfo(rs.getString(1), rs.getString(2).toLowerCase());
+                    col.generated = "ALWAYS".equals(rs.getString(3));
+                    cols.add(col);
                 }
             }
         } catch (SQLException e) { e.printStackTrace(); }
@@ -175,42 +722,87 @@ public class Hospital {
     // Data loading and filtering
     // ————————————————————————————————————————————————
 
+    /** Запрос выполняется в фоне; результат применяется на EDT, устаревшие ответы отбрасываются. */
     private void refreshTable() {
-        tableModel.setRowCount(0);
-        StringBuilder sql = new StringBuilder("SELECT * FROM ").append(currentTable);
+        String tableName = currentTable;
+        String filterColumn = currentFilterColumn;
+        String filterValue = currentFilterValue;
+        String sortColumn = currentSortColumn;
+        String sortOrder = currentSortOrder;
+        long generation = ++refreshGeneration;
+        recordQueryUsage(tableName, filterColumn, filterValue, sortColumn, sortOrder);
 
-        if (!currentFilterColumn.isEmpty() && !currentFilterValue.isEmpty()) {
-            sql.append(" WHERE ").append(currentFilterColumn).append("::TEXT ILIKE ?");
+        CompletableFuture.supplyAsync(() -> loadTableData(tableName, filterColumn, filterValue, sortColumn, sortOrder), background)
+                .whenComplete((data, err) -> SwingUtilities.invokeLater(() -> {
+                    if (generation != refreshGeneration) {
+                        if (data != null) data.rows.close();
+                        return;
+                    }
+                    if (err != null) {
+                        Throwable ex = unwrap(err);
+                        JOptionPane.showMessageDialog(frame, "Ошибка БД:\n" + ex.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
+                        ex.printStackTrace();
+                        return;
+                    }
+                    tableModel.setData(data);
+                    if (!firstLoadLogged) {
+                        firstLoadLogged = true;
+                        logStartup("таблица загружена");
+                        if (EXIT_AFTER_STARTUP) System.exit(0);
+                    }
+                }));
+    }
+
+    TableData loadTableData(String tableName, String filterColumn, String filterValue,
+                                    String sortColumn, String sortOrder) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(selectList(tableName)).append(" FROM ").append(tableName);
+
+        if (!filterColumn.isEmpty() && !filterValue.isEmpty()) {
+            sql.append(" WHERE ").append(filterColumn).append("::TEXT ILIKE ?");
         }
-        if (!currentSortColumn.isEmpty()) {
-            sql.append(" ORDER BY ").append(currentSortColumn).append(" ").append(currentSortOrder);
+        if (!sortColumn.isEmpty()) {
+            sql.append(" ORDER BY ").append(sortColumn).append(" ").append(sortOrder);
         }
+        String query = sql.toString();
+        String pattern = !filterColumn.isEmpty() && !filterValue.isEmpty() ? "%" + filterValue + "%" : null;
 
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-             PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+        List<ConnectionPool> targets = shards.forRead(tableName);
+        if (targets.size() == 1) return queryTableData(targets.get(0), query, pattern);
 
-            if (!currentFilterColumn.isEmpty() && !currentFilterValue.isEmpty()) {
-                stmt.setString(1, "%" + currentFilterValue + "%");
+        // Шардированная таблица: тот же запрос во всех шардах параллельно, затем слияние
+        List<CompletableFuture<TableData>> parts = new ArrayList<>();
+        for (ConnectionPool target : targets) {
+            parts.add(CompletableFuture.supplyAsync(() -> queryTableData(target, query, pattern), queryExecutor));
+        }
+        List<TableData> loaded = new ArrayList<>();
+        CompletionException failure = null;
+        for (CompletableFuture<TableData> part : parts) {
+            try {
+                loaded.add(part.join());
+            } catch (CompletionException e) {
+                failure = e;
             }
+        }
+        if (failure != null) {
+            for (TableData d : loaded) d.close();
+            throw failure;
+        }
+        int sortIndex = sortColumn.isEmpty() ? -1 : Arrays.asList(loaded.get(0).columnNames).indexOf(sortColumn);
+        return mergeShardData(loaded, sortIndex, "DESC".equals(sortOrder));
+    }
 
-            try (ResultSet rs = stmt.executeQuery()) {
-                ResultSetMetaData metaData = rs.getMetaData();
-                int cnt = metaData.getColumnCount();
-
-                Vector<String> names = new Vector<>();
-                for (int i = 1; i <= cnt; i++) names.add(metaData.getColumnName(i));
+    private TableData queryTableData(ConnectionPool target, String sql, String pattern) {
+        try (Connection conn = target.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false); // иначе драйвер PostgreSQL не использует курсор и читает всё сразу
+            stmt.setFetchSize(RESULT_FETCH_SIZE);
+            if (pattern != null) stmt.setString(1, pattern);
 
-                Vector<Vector<Object>> data = new Vector<>();
-                while (rs.next()) {
-                    Vector<Object> row = new Vector<>();
-                    for (int i = 1; i <= cnt; i++) row.add(rs.getObject(i));
-                    data.add(row);
-                }
-                tableModel.setDataVector(data, names);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return readResult(rs);
             }
         } catch (SQLException ex) {
-            JOptionPane.showMessageDialog(frame, "Ошибка БД:\n" + ex.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
-            ex.printStackTrace();
+            throw new CompletionException(ex);
         }
     }
 
@@ -232,162 +824,1187 @@ public class Hospital {
         currentSortColumn = "";
         currentSortOrder = "ASC";
 
-        List<String> cols = getTableColumns(currentTable);
+        fillColumnCombos(getTableColumns(currentTable));
+
+        filterValueField.setText("");
+        sortOrderCombo.setSelectedItem("ASC");
+        refreshTable();
+    }
+
+    private void fillColumnCombos(List<String> cols) {
         filterColumnCombo.setModel(new DefaultComboBoxModel<>(cols.toArray(new String[0])));
         sortColumnCombo.setModel(new DefaultComboBoxModel<>(cols.toArray(new String[0])));
         if (!cols.isEmpty()) {
             filterColumnCombo.setSelectedIndex(Math.min(1, cols.size() - 1));
             sortColumnCombo.setSelectedIndex(0);
         }
-
-        filterValueField.setText("");
-        sortOrderCombo.setSelectedItem("ASC");
-        refreshTable();
     }
 
     // ————————————————————————————————————————————————
-    // CRUD
+    // Буфер результата с вытеснением на диск
     // ————————————————————————————————————————————————
 
-    private void openRecordEditor(Map<String, Object> initialData) {
-        List<ColumnInfo> cols = getTableStructure(currentTable);
-        if (cols.isEmpty()) return;
-
-        String pkCol = cols.get(0).name;
-        List<ColumnInfo> editable = new ArrayList<>(cols);
-        editable.remove(0);
+    // Сколько байт строк держать в куче; остальное уходит во временный файл
+    private static final long RESULT_HEAP_BYTES = Long.getLong("hospital.resultBuffer.heapMB", 32) << 20;
+    private static final int RESULT_FETCH_SIZE = 1000;
 
-        Map<String, ForeignKeyInfo> fks = getForeignKeys(currentTable);
+    static class TableData implements AutoCloseable {
+        final String[] columnNames;
+        final ResultBuffer rows;
+        TableData(String[] columnNames, ResultBuffer rows) {
+            this.columnNames = columnNames; this.rows = rows;
+        }
+        @Override public void close() { rows.close(); }
+    }
 
-        RecordEditorDialog dialog = new RecordEditorDialog(frame, "Редактирование: " + currentTable,
-                editable, fks, initialData, pkCol);
-        dialog.setVisible(true);
+    /** Читает курсор порциями по RESULT_FETCH_SIZE строк прямо в буфер, не собирая строки в памяти. */
+    private static TableData readResult(ResultSet rs) throws SQLException {
+        rs.setFetchSize(RESULT_FETCH_SIZE);
+        ResultSetMetaData metaData = rs.getMetaData();
+        String[] names = new String[metaData.getColumnCount()];
+        for (int i = 0; i < names.length; i++) names[i] = metaData.getColumnName(i + 1);
 
-        if (dialog.isConfirmed()) {
-            Map<String, Object> data = dialog.getData();
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-                conn.setAutoCommit(false);
-                boolean success = false;
-                if (initialData == null) {
-                    String colsStr = String.join(", ", data.keySet());
-                    String ph = String.join(", ", Collections.nCopies(data.size(), "?"));
-                    String sql = "INSERT INTO " + currentTable + " (" + colsStr + ") VALUES (" + ph + ")";
-                    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                        int i = 1;
-                        for (Object v : data.values()) setParam(stmt, i++, v);
-                        stmt.executeUpdate();
-                        success = true;
-                    }
-                } else {
-                    String set = String.join(" = ?, ", data.keySet()) + " = ?";
-                    String sql = "UPDATE " + currentTable + " SET " + set + " WHERE " + pkCol + " = ?";
-                    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                        int i = 1;
-                        for (Object v : data.values()) setParam(stmt, i++, v);
-                        stmt.setObject(i, initialData.get(pkCol));
-                        stmt.executeUpdate();
-                        success = true;
-                    }
-                }
-                if (success) {
-                    conn.commit();
-                    JOptionPane.showMessageDialog(frame, initialData == null ? "Добавлено." : "Обновлено.");
-                    refreshTable();
-                } else throw new SQLException("No rows affected");
-            } catch (SQLException e) {
-                JOptionPane.showMessageDialog(frame, "Ошибка БД:\n" + e.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
-                e.printStackTrace();
+        ResultBuffer buffer = new ResultBuffer(names.length, RESULT_HEAP_BYTES);
+        try {
+            Object[] row = new Object[names.length];
+            while (rs.next()) {
+                for (int i = 0; i < row.length; i++) row[i] = rs.getObject(i + 1);
+                buffer.append(row);
             }
+            buffer.finish();
+        } catch (SQLException | RuntimeException e) {
+            buffer.close();
+            throw e;
         }
+        return new TableData(names, buffer);
     }
 
-    private void setParam(PreparedStatement stmt, int idx, Object val) throws SQLException {
-        if (val instanceof java.sql.Date) {
-            stmt.setDate(idx, (java.sql.Date) val);
-        } else if (val instanceof java.sql.Timestamp) {
-            stmt.setTimestamp(idx, (java.sql.Timestamp) val);
-        } else {
-            stmt.setObject(idx, val);
+    /** Модель основной таблицы поверх ResultBuffer: строки декодируются по требованию. */
+    private static class ResultBufferTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+
+        private String[] columnNames = new String[0];
+        private ResultBuffer rows;
+
+        void setData(TableData data) {
+            ResultBuffer old = rows;
+            columnNames = data.columnNames;
+            rows = data.rows;
+            fireTableStructureChanged();
+            if (old != null) old.close();
         }
+
+        @Override public int getRowCount() { return rows == null ? 0 : rows.rowCount(); }
+        @Override public int getColumnCount() { return columnNames.length; }
+        @Override public String getColumnName(int column) { return columnNames[column]; }
+        @Override public Object getValueAt(int row, int column) { return rows.row(row)[column]; }
     }
 
-    private void deleteSelectedRecord(ActionEvent e) {
-        int[] sel = table.getSelectedRows();
-        if (sel.length == 0) {
-            JOptionPane.showMessageDialog(frame, "Выберите строку.", "Внимание", JOptionPane.WARNING_MESSAGE);
-            return;
+    /**
+     * Строки в компактном двоичном виде: первые heapBudget байт — в куче, остальное — во временном
+     * файле, читаемом через отображённые окна по 64 МБ. close() удаляет файлы (неудавшееся — повторно на выходе).
+     */
+    static class ResultBuffer implements AutoCloseable {
+        private static final int WINDOW = 64 << 20;
+        private static final int ROW_CACHE = 512;
+        private static final byte NULL = 0, INT = 1, LONG = 2, DOUBLE = 3, STRING = 4, TIMESTAMP = 5, DATE = 6,
+                BOOL = 7, DECIMAL = 8, SHORT = 9, FLOAT = 10;
+        // Массив в куче индексируется int: бюджет больше 2 ГБ не имеет смысла
+        private static final long MAX_HEAP_BUDGET = Integer.MAX_VALUE - 8;
+        private static final MethodHandle UNMAP = findUnmapper();
+        private static final Set<Path> UNDELETED = ConcurrentHashMap.newKeySet();
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(ResultBuffer::deleteUndeleted, "hospital-result-cleanup"));
         }
-        if (JOptionPane.NO_OPTION == JOptionPane.showConfirmDialog(frame,
-                "Удалить " + sel.length + " запись(ей)?", "Подтверждение", JOptionPane.YES_NO_OPTION)) return;
 
-        String pk = getTableStructure(currentTable).get(0).name;
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            conn.setAutoCommit(false);
-            String sql = "DELETE FROM " + currentTable + " WHERE " + pk + " = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                for (int r : sel) {
-                    Object id = tableModel.getValueAt(table.convertRowIndexToModel(r), 0);
-                    stmt.setObject(1, id);
-                    stmt.addBatch();
+        private final int columnCount;
+        private final long heapBudget;
+        private int rowCount;
+
+        // Сегмент в куче
+        private byte[] heap = new byte[64 << 10];
+        private int heapUsed;
+        private int[] heapOffsets = new int[1024];
+        private int heapRows;
+
+        // Сегмент на диске
+        private Path dataPath, indexPath;
+        private FileChannel data, index;
+        private ByteBuffer dataOut, indexOut;
+        private long dataSize;
+        private MappedByteBuffer[] dataWindows, indexWindows;
+
+        private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(256);
+        private final DataOutputStream encoder = new DataOutputStream(scratch);
+        private final Map<Integer, Object[]> rowCache = new LinkedHashMap<>(ROW_CACHE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Object[]> eldest) {
+                return size() > ROW_CACHE;
+            }
+        };
+
+        ResultBuffer(int columnCount, long heapBudget) {
+            this.columnCount = columnCount;
+            this.heapBudget = Math.min(heapBudget, MAX_HEAP_BUDGET);
+        }
+
+        int rowCount() { return rowCount; }
+
+        void append(Object[] row) {
+            scratch.reset();
+            try {
+                for (Object v : row) encode(v);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            byte[] bytes = scratch.toByteArray();
+            if (data == null && heapUsed + (long) bytes.length <= heapBudget) {
+                if (heapUsed + bytes.length > heap.length) {
+                    heap = Arrays.copyOf(heap, (int) Math.min(heapBudget, Math.max(heap.length * 2L, heapUsed + bytes.length)));
                 }
-                stmt.executeBatch();
-                conn.commit();
-                JOptionPane.showMessageDialog(frame, "Удалено.");
-                refreshTable();
-            } catch (Exception ex) {
-                conn.rollback();
-                throw ex;
+                if (heapRows == heapOffsets.length) heapOffsets = Arrays.copyOf(heapOffsets, heapRows * 2);
+                heapOffsets[heapRows++] = heapUsed;
+                System.arraycopy(bytes, 0, heap, heapUsed, bytes.length);
+                heapUsed += bytes.length;
+            } else {
+                spill(bytes);
             }
-        } catch (SQLException ex) {
-            JOptionPane.showMessageDialog(frame, "Ошибка: " + ex.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
-            ex.printStackTrace();
+            rowCount++;
         }
-    }
 
-    private Map<String, Object> getSelectedRowData() {
-        int r = table.getSelectedRow();
-        if (r == -1) return null;
-        r = table.convertRowIndexToModel(r);
-        List<ColumnInfo> cols = getTableStructure(currentTable);
-        Map<String, Object> data = new LinkedHashMap<>();
-        for (int i = 0; i < cols.size(); i++) {
-            data.put(cols.get(i).name, tableModel.getValueAt(r, i));
+        private void spill(byte[] bytes) {
+            if (bytes.length > WINDOW) throw new IllegalStateException("Строка больше окна буфера: " + bytes.length + " байт");
+            try {
+                if (data == null) openSpillFiles();
+                // Строка не должна пересекать границу окна — дополняем нулями до следующего
+                long windowEnd = (dataSize / WINDOW + 1) * WINDOW;
+                if (dataSize + bytes.length > windowEnd) {
+                    writeData(new byte[(int) (windowEnd - dataSize)]);
+                }
+                if (indexOut.remaining() < Long.BYTES) flush(index, indexOut);
+                indexOut.putLong(dataSize);
+                writeData(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
-        return data;
-    }
 
-    // ————————————————————————————————————————————————
-    // Meta FK
-    // ————————————————————————————————————————————————
+        private void openSpillFiles() throws IOException {
+            dataPath = Files.createTempFile("hospital-result", ".rows");
+            indexPath = Files.createTempFile("hospital-result", ".idx");
+            OpenOption[] opts = {StandardOpenOption.READ, StandardOpenOption.WRITE};
+            data = FileChannel.open(dataPath, opts);
+            index = FileChannel.open(indexPath, opts);
+            dataOut = ByteBuffer.allocate(1 << 16);
+            indexOut = ByteBuffer.allocate(1 << 16);
+            // Массив в куче больше не растёт: его хвост не нужен
+            heap = Arrays.copyOf(heap, heapUsed);
+        }
 
-    private static class ColumnInfo {
-        String name, type;
-        ColumnInfo(String name, String type) { this.name = name; this.type = type; }
-    }
+        private void writeData(byte[] bytes) throws IOException {
+            int pos = 0;
+            while (pos < bytes.length) {
+                if (!dataOut.hasRemaining()) flush(data, dataOut);
+                int n = Math.min(dataOut.remaining(), bytes.length - pos);
+                dataOut.put(bytes, pos, n);
+                pos += n;
+            }
+            dataSize += bytes.length;
+        }
 
-    private static class ForeignKeyInfo {
-        String refTable, refPK, displayColumn;
-        ForeignKeyInfo(String refTable, String refPK, String displayColumn) {
-            this.refTable = refTable; this.refPK = refPK; this.displayColumn = displayColumn;
+        private static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) ch.write(buf);
+            buf.clear();
         }
-    }
 
-    private Map<String, ForeignKeyInfo> getForeignKeys(String table) {
-        Map<String, ForeignKeyInfo> map = new HashMap<>();
-        String sql = """
-            SELECT
-                kcu.column_name,
-                ccu.table_name AS foreign_table_name,
-                ccu.column_name AS foreign_column_name
-            FROM information_schema.table_constraints tc
-            JOIN information_schema.key_column_usage kcu ON tc.constraint_name = kcu.constraint_name
-            JOIN information_schema.constraint_column_usage ccu ON ccu.constraint_name = tc.constraint_name
-            WHERE tc.constraint_type = 'FOREIGN KEY' AND tc.table_name = ?
-            """;
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, table);
-            try (ResultSet rs = stmt.executeQuery()) {
+        /** Запись завершена: сбросить буферы и отобразить файлы для чтения. */
+        void finish() {
+            if (data == null) return;
+            try {
+                flush(data, dataOut);
+                flush(index, indexOut);
+                dataOut = indexOut = null;
+                dataWindows = new MappedByteBuffer[(int) ((data.size() + WINDOW - 1) / WINDOW)];
+                indexWindows = new MappedByteBuffer[(int) ((index.size() + WINDOW - 1) / WINDOW)];
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        Object[] row(int row) {
+            Object[] cached = rowCache.get(row);
+            if (cached != null) return cached;
+            ByteBuffer in;
+            if (row < heapRows) {
+                in = ByteBuffer.wrap(heap, heapOffsets[row], heapUsed - heapOffsets[row]);
+            } else {
+                long idxPos = (long) (row - heapRows) * Long.BYTES;
+                long offset = window(indexWindows, index, idxPos).getLong((int) (idxPos % WINDOW));
+                in = window(dataWindows, data, offset).duplicate().position((int) (offset % WINDOW));
+            }
+            Object[] values = new Object[columnCount];
+            for (int c = 0; c < columnCount; c++) values[c] = decode(in);
+            rowCache.put(row, values);
+            return values;
+        }
+
+        private static MappedByteBuffer window(MappedByteBuffer[] windows, FileChannel ch, long pos) {
+            int w = (int) (pos / WINDOW);
+            if (windows[w] == null) {
+                try {
+                    long start = (long) w * WINDOW;
+                    windows[w] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, ch.size() - start));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return windows[w];
+        }
+
+        private void encode(Object v) throws IOException {
+            if (v == null) {
+                encoder.writeByte(NULL);
+            } else if (v instanceof Integer i) {
+                encoder.writeByte(INT);
+                encoder.writeInt(i);
+            } else if (v instanceof Long l) {
+                encoder.writeByte(LONG);
+                encoder.writeLong(l);
+            } else if (v instanceof Short sh) {
+                encoder.writeByte(SHORT);
+                encoder.writeShort(sh);
+            } else if (v instanceof Double d) {
+                encoder.writeByte(DOUBLE);
+                encoder.writeDouble(d);
+            } else if (v instanceof Float f) {
+                encoder.writeByte(FLOAT);
+                encoder.writeFloat(f);
+            } else if (v instanceof Boolean b) {
+                encoder.writeByte(BOOL);
+                encoder.writeBoolean(b);
+            } else if (v instanceof Timestamp ts) {
+                encoder.writeByte(TIMESTAMP);
+                encoder.writeLong(ts.getTime());
+                encoder.writeInt(ts.getNanos());
+            } else if (v instanceof java.sql.Date d) {
+                encoder.writeByte(DATE);
+                encoder.writeInt((int) d.toLocalDate().toEpochDay());
+            } else if (v instanceof BigDecimal bd) {
+                encoder.writeByte(DECIMAL);
+                writeString(bd.toString());
+            } else {
+                encoder.writeByte(STRING);
+                writeString(v.toString());
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            encoder.writeInt(utf8.length);
+            encoder.write(utf8);
+        }
+
+        private static Object decode(ByteBuffer in) {
+            byte type = in.get();
+            switch (type) {
+                case NULL: return null;
+                case INT: return in.getInt();
+                case LONG: return in.getLong();
+                case SHORT: return in.getShort();
+                case DOUBLE: return in.getDouble();
+                case FLOAT: return in.getFloat();
+                case BOOL: return in.get() != 0;
+                case TIMESTAMP: {
+                    Timestamp ts = new Timestamp(in.getLong());
+                    ts.setNanos(in.getInt());
+                    return ts;
+                }
+                case DATE: return java.sql.Date.valueOf(LocalDate.ofEpochDay(in.getInt()));
+                case DECIMAL: return new BigDecimal(readString(in));
+                default: return readString(in);
+            }
+        }
+
+        private static String readString(ByteBuffer in) {
+            byte[] utf8 = new byte[in.getInt()];
+            in.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() {
+            rowCache.clear();
+            heap = null;
+            unmap(dataWindows);
+            unmap(indexWindows);
+            dataWindows = indexWindows = null;
+            try {
+                if (data != null) data.close();
+                if (index != null) index.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (dataPath != null) UNDELETED.add(dataPath);
+            if (indexPath != null) UNDELETED.add(indexPath);
+            dataPath = indexPath = null;
+            deleteUndeleted();
+        }
+
+        private static void deleteUndeleted() {
+            for (Path path : UNDELETED) {
+                try {
+                    Files.deleteIfExists(path);
+                    UNDELETED.remove(path);
+                } catch (IOException | SecurityException ignored) {
+                    // ещё отображён (Windows) — следующая попытка при следующем close() или на выходе
+                }
+            }
+        }
+
+        /** Окна освобождаются сразу, не дожидаясь GC: иначе Windows не даст удалить файл. */
+        private static void unmap(MappedByteBuffer[] windows) {
+            if (windows == null || UNMAP == null) return;
+            for (MappedByteBuffer w : windows) {
+                if (w == null) continue;
+                try {
+                    UNMAP.invokeExact((ByteBuffer) w);
+                } catch (Throwable e) {
+                    return;
+                }
+            }
+        }
+
+        /** sun.misc.Unsafe.invokeCleaner (модуль jdk.unsupported); null — недоступно, окна освободит GC. */
+        private static MethodHandle findUnmapper() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                return MethodHandles.lookup()
+                        .findVirtual(unsafeClass, "invokeCleaner",
+                                MethodType.methodType(void.class, ByteBuffer.class))
+                        .bindTo(theUnsafe.get(null));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    // ————————————————————————————————————————————————
+    // CRUD
+    // ————————————————————————————————————————————————
+
+    /** Метаданные и списки FK грузятся в фоне (для больших таблиц это запрос к БД), диалог открывается на EDT. */
+    private void openRecordEditor(Map<String, Object> initialData) {
+        String tableName = currentTable;
+        CompletableFuture.supplyAsync(() -> {
+            getTableStructure(tableName);
+            return loadEditorItems(tableName, initialData);
+        }, background).whenComplete((fkItems, err) -> SwingUtilities.invokeLater(() -> {
+            if (err != null) {
+                Throwable ex = unwrap(err);
+                JOptionPane.showMessageDialog(frame, "Ошибка БД:\n" + ex.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
+                ex.printStackTrace();
+                return;
+            }
+            showRecordEditor(tableName, initialData, fkItems);
+        }));
+    }
+
+    private void showRecordEditor(String tableName, Map<String, Object> initialData, Map<String, List<FKItem>> fkItems) {
+        List<ColumnInfo> cols = getTableStructure(tableName);
+        if (cols.isEmpty()) return;
+
+        String pkCol = cols.get(0).name;
+        List<ColumnInfo> editable = new ArrayList<>(cols);
+        editable.remove(0);
+        editable.removeIf(c -> c.generated);
+
+        Map<String, ForeignKeyInfo> fks = getForeignKeys(tableName);
+
+        RecordEditorDialog dialog = new RecordEditorDialog(frame, "Редактирование: " + tableName,
+                editable, fks, fkItems, initialData, pkCol);
+        dialog.setVisible(true);
+
+        if (dialog.isConfirmed()) {
+            Map<String, Object> data = dialog.getData();
+            writeInBackground(() -> initialData == null
+                    ? insertRecord(tableName, data)
+                    : updateRecord(tableName, pkCol, initialData, data), after -> {
+                fireRowChanged(tableName, initialData, after);
+                JOptionPane.showMessageDialog(frame, initialData == null ? "Добавлено." : "Обновлено.");
+                refreshTable();
+            });
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlAction<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Запись из UI выполняется в фоне: ожидание соединения (пока отчёты заняли пул) и сам
+     * запрос не держат EDT. Результат или ошибка — на EDT.
+     */
+    private <T> void writeInBackground(SqlAction<T> action, Consumer<T> onDone) {
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return action.run();
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, background).whenComplete((result, err) -> SwingUtilities.invokeLater(() -> {
+            if (err != null) {
+                Throwable ex = unwrap(err);
+                if (ex instanceof PartialWriteException partial) {
+                    for (int i = 0; i < partial.after.size(); i++) {
+                        fireRowChanged(partial.table, partial.before.get(i), partial.after.get(i));
+                    }
+                    refreshTable();
+                }
+                JOptionPane.showMessageDialog(frame, "Ошибка БД:\n" + ex.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
+                ex.printStackTrace();
+                return;
+            }
+            onDone.accept(result);
+        }));
+    }
+
+    /** Списки значений для выпадающих FK-полей редактора. */
+    Map<String, List<FKItem>> loadEditorItems(String tableName) {
+        return loadEditorItems(tableName, null);
+    }
+
+    /** То же для редактирования строки current: её текущие значения FK всегда есть в списках. */
+    Map<String, List<FKItem>> loadEditorItems(String tableName, Map<String, Object> current) {
+        Map<String, List<FKItem>> fkItems = new HashMap<>();
+        for (Map.Entry<String, ForeignKeyInfo> fk : getForeignKeys(tableName).entrySet()) {
+            Object selected = current == null ? null : current.get(fk.getKey());
+            fkItems.put(fk.getKey(), getReferenceItems(fk.getValue().refTable, selected));
+        }
+        return fkItems;
+    }
+
+    // Запись в БД без UI: вызывающий сам уведомляет слушателей (fireRowChanged) и обновляет таблицу.
+    // В режиме шардов строка шардированной таблицы пишется в шард своей больницы, а строка
+    // реплицируемой — во все шарды, каждый в своей транзакции. Записи в реплики идемпотентны,
+    // поэтому после сбоя посередине операцию можно просто повторить: вставка в реплику —
+    // ON CONFLICT DO NOTHING, изменение отсутствующей в реплике строки дописывает её целиком,
+    // удаление отсутствующей строки ничего не делает. Изменение и удаление идут в домашний шард
+    // последним — пока он не изменён, строка в таблице прежняя и операцию видно, что повторить.
+
+    /**
+     * Запись зафиксирована не во всех шардах. Слушатели должны узнать о зафиксированных
+     * изменениях (before.get(i) → after.get(i)); повтор операции догонит остальные шарды.
+     */
+    static class PartialWriteException extends SQLException {
+        private static final long serialVersionUID = 1L;
+        final String table;
+        final transient List<Map<String, Object>> before = new ArrayList<>(), after = new ArrayList<>();
+
+        PartialWriteException(String table, SQLException cause) {
+            super("Изменения сохранены не во всех шардах (" + cause.getMessage() + "). Повторите операцию.", cause);
+            this.table = table;
+        }
+
+        PartialWriteException committed(Map<String, Object> before, Map<String, Object> after) {
+            this.before.add(before);
+            this.after.add(after);
+            return this;
+        }
+    }
+
+    /** Вставка строки; возвращает всю вставленную строку, включая ключ и DEFAULT-значения. */
+    Map<String, Object> insertRecord(String tableName, Map<String, Object> data) throws SQLException {
+        if (!shards.replicated(tableName)) return insertInto(shards.forRow(tableName, data), tableName, data, false);
+
+        // Ключ выдаёт домашний шард, поэтому он первый
+        Map<String, Object> after = insertInto(shards.home(), tableName, data, false);
+        String pk = getTableStructure(tableName).get(0).name;
+        Map<String, Object> replica = new LinkedHashMap<>();
+        replica.put(pk, after.get(pk));
+        replica.putAll(data);
+        try {
+            for (ConnectionPool target : shards.all()) {
+                if (target != shards.home()) insertInto(target, tableName, replica, true);
+            }
+        } catch (SQLException e) {
+            throw new PartialWriteException(tableName, e).committed(null, after);
+        }
+        return after;
+    }
+
+    /** ignoreExisting — вставка в реплику: строка с тем же ключом уже есть (повтор) — не ошибка. */
+    private Map<String, Object> insertInto(ConnectionPool target, String tableName, Map<String, Object> data,
+                                           boolean ignoreExisting) throws SQLException {
+        String colsStr = String.join(", ", data.keySet());
+        String ph = String.join(", ", Collections.nCopies(data.size(), "?"));
+        String sql = "INSERT INTO " + tableName + " (" + colsStr + ") VALUES (" + ph + ")"
+                + (ignoreExisting ? " ON CONFLICT DO NOTHING" : "");
+        Map<String, Object> after = new LinkedHashMap<>();
+        try (Connection conn = target.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            conn.setAutoCommit(false);
+            int i = 1;
+            for (Object v : data.values()) setParam(stmt, i++, v);
+            stmt.executeUpdate();
+            // PostgreSQL возвращает всю вставленную строку (RETURNING *), включая ключ и DEFAULT-значения
+            try (ResultSet keys = stmt.getGeneratedKeys()) {
+                if (keys.next()) {
+                    ResultSetMetaData md = keys.getMetaData();
+                    for (int c = 1; c <= md.getColumnCount(); c++) after.put(md.getColumnName(c), keys.getObject(c));
+                } else if (!ignoreExisting) {
+                    throw new SQLException("No rows affected");
+                }
+            }
+            conn.commit();
+        }
+        return after;
+    }
+
+    /** Обновление строки по первичному ключу из before; возвращает before с применёнными изменениями. */
+    Map<String, Object> updateRecord(String tableName, String pkCol, Map<String, Object> before,
+                                     Map<String, Object> data) throws SQLException {
+        Map<String, Object> after = new LinkedHashMap<>(before);
+        after.putAll(data);
+        if (shards.replicated(tableName)) {
+            for (ConnectionPool target : shards.all()) {
+                if (target == shards.home()) continue;
+                // Строки нет в реплике (прошлая вставка туда не дошла) — дописываем её целиком
+                if (updateIn(target, tableName, pkCol, before, data) == 0) {
+                    insertInto(target, tableName, storedColumns(tableName, after), true);
+                }
+            }
+        } else {
+            ConnectionPool target = shards.forRow(tableName, before);
+            if (data.containsKey("hospital_id") && shards.forRow(tableName, data) != target) {
+                throw new SQLException("Перенос записи в больницу другого шарда не поддерживается: удалите и создайте запись заново");
+            }
+            if (updateIn(target, tableName, pkCol, before, data) == 0) throw new SQLException("No rows affected");
+            return after;
+        }
+        if (updateIn(shards.home(), tableName, pkCol, before, data) == 0) throw new SQLException("No rows affected");
+        return after;
+    }
+
+    /** Значения строки без вычисляемых (GENERATED) столбцов — для INSERT. */
+    private Map<String, Object> storedColumns(String tableName, Map<String, Object> row) {
+        Map<String, Object> stored = new LinkedHashMap<>();
+        for (ColumnInfo col : getTableStructure(tableName)) {
+            if (!col.generated && row.containsKey(col.name)) stored.put(col.name, row.get(col.name));
+        }
+        return stored;
+    }
+
+    /** Число изменённых строк. */
+    private int updateIn(ConnectionPool target, String tableName, String pkCol, Map<String, Object> before,
+                         Map<String, Object> data) throws SQLException {
+        String set = String.join(" = ?, ", data.keySet()) + " = ?";
+        String sql = "UPDATE " + tableName + " SET " + set + " WHERE " + pkCol + " = ?";
+        try (Connection conn = target.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false);
+            int i = 1;
+            for (Object v : data.values()) setParam(stmt, i++, v);
+            stmt.setObject(i, before.get(pkCol));
+            int updated = stmt.executeUpdate();
+            conn.commit();
+            return updated;
+        }
+    }
+
+    /** Удаление строк по первичному ключу: по пакету в одной транзакции на каждый затронутый шард. */
+    void deleteRecords(String tableName, String pkCol, List<Map<String, Object>> rows) throws SQLException {
+        Map<ConnectionPool, List<Map<String, Object>>> byShard = new LinkedHashMap<>();
+        if (shards.replicated(tableName)) {
+            for (ConnectionPool target : shards.all()) {
+                if (target != shards.home()) byShard.put(target, rows);
+            }
+            byShard.put(shards.home(), rows);
+        } else {
+            for (Map<String, Object> row : rows) {
+                byShard.computeIfAbsent(shards.forRow(tableName, row), k -> new ArrayList<>()).add(row);
+            }
+        }
+        // Реплицируемая строка исчезает, только когда удалена в домашнем шарде (он последний),
+        // шардированная — когда удалена в своём шарде
+        List<Map<String, Object>> committed = new ArrayList<>();
+        for (Map.Entry<ConnectionPool, List<Map<String, Object>>> shard : byShard.entrySet()) {
+            try {
+                deleteIn(shard.getKey(), tableName, pkCol, shard.getValue());
+            } catch (SQLException e) {
+                if (committed.isEmpty()) throw e;
+                PartialWriteException partial = new PartialWriteException(tableName, e);
+                for (Map<String, Object> row : committed) partial.committed(row, null);
+                throw partial;
+            }
+            if (!shards.replicated(tableName) || shard.getKey() == shards.home()) committed.addAll(shard.getValue());
+        }
+    }
+
+    private void deleteIn(ConnectionPool target, String tableName, String pkCol, List<Map<String, Object>> rows) throws SQLException {
+        try (Connection conn = target.getConnection()) {
+            conn.setAutoCommit(false);
+            String sql = "DELETE FROM " + tableName + " WHERE " + pkCol + " = ?";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                for (Map<String, Object> row : rows) {
+                    stmt.setObject(1, row.get(pkCol));
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.commit();
+            } catch (Exception ex) {
+                conn.rollback();
+                throw ex;
+            }
+        }
+    }
+
+    private void setParam(PreparedStatement stmt, int idx, Object val) throws SQLException {
+        if (val instanceof java.sql.Date) {
+            stmt.setDate(idx, (java.sql.Date) val);
+        } else if (val instanceof java.sql.Timestamp) {
+            stmt.setTimestamp(idx, (java.sql.Timestamp) val);
+        } else {
+            stmt.setObject(idx, val);
+        }
+    }
+
+    private void deleteSelectedRecord(ActionEvent e) {
+        int[] sel = table.getSelectedRows();
+        if (sel.length == 0) {
+            JOptionPane.showMessageDialog(frame, "Выберите строку.", "Внимание", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        if (JOptionPane.NO_OPTION == JOptionPane.showConfirmDialog(frame,
+                "Удалить " + sel.length + " запись(ей)?", "Подтверждение", JOptionPane.YES_NO_OPTION)) return;
+
+        String tableName = currentTable;
+        String pk = getTableStructure(tableName).get(0).name;
+        List<Map<String, Object>> deleted = new ArrayList<>();
+        for (int r : sel) deleted.add(getRowData(table.convertRowIndexToModel(r)));
+        writeInBackground(() -> {
+            deleteRecords(tableName, pk, deleted);
+            return deleted;
+        }, rows -> {
+            for (Map<String, Object> row : rows) fireRowChanged(tableName, row, null);
+            JOptionPane.showMessageDialog(frame, "Удалено.");
+            refreshTable();
+        });
+    }
+
+    private Map<String, Object> getSelectedRowData() {
+        int r = table.getSelectedRow();
+        if (r == -1) return null;
+        return getRowData(table.convertRowIndexToModel(r));
+    }
+
+    private Map<String, Object> getRowData(int modelRow) {
+        List<ColumnInfo> cols = getTableStructure(currentTable);
+        Map<String, Object> data = new LinkedHashMap<>();
+        for (int i = 0; i < cols.size(); i++) {
+            data.put(cols.get(i).name, tableModel.getValueAt(modelRow, i));
+        }
+        return data;
+    }
+
+    // ————————————————————————————————————————————————
+    // Уведомления о записи
+    // ————————————————————————————————————————————————
+
+    /**
+     * Изменение строки, сделанное этим клиентом (вызывается на EDT после commit; без окна —
+     * из потока, сделавшего запись). before == null — вставка, after == null — удаление.
+     */
+    private interface RowChangeListener {
+        void rowChanged(String table, Map<String, Object> before, Map<String, Object> after);
+    }
+
+    private final List<RowChangeListener> rowChangeListeners = new CopyOnWriteArrayList<>();
+
+    void fireRowChanged(String table, Map<String, Object> before, Map<String, Object> after) {
+        for (RowChangeListener l : rowChangeListeners) {
+            try {
+                l.rowChanged(table, before, after);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // ————————————————————————————————————————————————
+    // Журнал изменений (аудит)
+    // ————————————————————————————————————————————————
+
+    private static final int AUDIT_CAPACITY = Integer.getInteger("hospital.audit.capacity", 8192);
+    private static final int AUDIT_BATCH = 500;
+    private static final long AUDIT_FLUSH_MS = 200;
+    private static final long AUDIT_SHUTDOWN_MS = 5000;
+    private static final long AUDIT_RETRY_MAX_MS = 30_000;
+    private static final Path AUDIT_DIR = Paths.get(System.getProperty("hospital.audit.dir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "hospital-audit").toString()));
+
+    /** Изменение в том виде, в каком его передали слушатели; diff строится уже в потоке записи. */
+    static class AuditRecord {
+        final long changedAtMillis;
+        final String user, table;
+        final Map<String, Object> before, after;
+        AuditRecord(long changedAtMillis, String user, String table, Map<String, Object> before, Map<String, Object> after) {
+            this.changedAtMillis = changedAtMillis; this.user = user; this.table = table;
+            this.before = before; this.after = after;
+        }
+    }
+
+    /** Ограниченная очередь без блокировок (много производителей, один потребитель) с номером последовательности у ячейки. */
+    static class AuditRing {
+        private final AuditRecord[] slots;
+        private final AtomicLongArray sequence;
+        private final AtomicLong tail = new AtomicLong();
+        private final int mask;
+        private long head; // только поток записи
+
+        AuditRing(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            slots = new AuditRecord[size];
+            sequence = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) sequence.set(i, i);
+            mask = size - 1;
+        }
+
+        /** false — очередь заполнена. */
+        boolean offer(AuditRecord record) {
+            long pos = tail.get();
+            while (true) {
+                int idx = (int) (pos & mask);
+                long diff = sequence.get(idx) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        slots[idx] = record;
+                        sequence.set(idx, pos + 1); // публикация записи потребителю
+                        return true;
+                    }
+                    pos = tail.get();
+                } else if (diff < 0) {
+                    return false;
+                } else {
+                    pos = tail.get();
+                }
+            }
+        }
+
+        AuditRecord poll() {
+            int idx = (int) (head & mask);
+            if (sequence.get(idx) != head + 1) return null;
+            AuditRecord record = slots[idx];
+            slots[idx] = null;
+            sequence.set(idx, head + slots.length); // ячейка свободна для следующего круга
+            head++;
+            return record;
+        }
+    }
+
+    /**
+     * Журнал изменений приложения: rowChanged только кладёт запись в AuditRing (переполнение — в очередь,
+     * которую поток записи сбрасывает в файл в AUDIT_DIR), поток записи пишет пакеты COPY в audit_log.
+     * Временные ошибки БД — повтор с растущей паузой, постоянные — пакет в audit-failed-*.csv.
+     */
+    private static class AuditLog implements Runnable {
+        private static final String COPY_SQL =
+                "COPY audit_log (changed_at, app_user, table_name, pk, op, diff) FROM STDIN WITH (FORMAT csv)";
+        private static final String INSERT_SQL =
+                "INSERT INTO audit_log (changed_at, app_user, table_name, pk, op, diff) VALUES (?, ?, ?, ?, ?, ?::jsonb)";
+        private static final Path OVERFLOW_FILE = AUDIT_DIR.resolve("audit-overflow.csv");
+
+        private final ConnectionPool target;
+        private final AuditRing ring = new AuditRing(AUDIT_CAPACITY);
+        private final String user = System.getProperty("user.name", "?");
+        private final Thread writer = new Thread(this, "hospital-audit");
+        private volatile boolean stopped;
+        private Boolean copySupported; // только поток записи; null — ещё не проверяли
+
+        private long retryMs;          // только поток записи; 0 — ошибок нет
+        private long deadLetterFiles;  // только поток записи
+
+        // Не поместилось в кольцо; в файл переполнения переносит только поток записи
+        private final ConcurrentLinkedQueue<AuditRecord> overflow = new ConcurrentLinkedQueue<>();
+        private volatile long pendingInFile; // записей в OVERFLOW_FILE; пишет только поток записи
+        private boolean overflowFailed;      // только поток записи: ошибку файла уже напечатали
+
+        // Состояние для строки в главном окне
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile long deadLettered;
+        private volatile String deadLetterReason;
+        private volatile String lastError;
+
+        AuditLog(ConnectionPool target) {
+            this.target = target;
+            pendingInFile = countLines(OVERFLOW_FILE); // остался от прошлого запуска
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close, "hospital-audit-flush"));
+        }
+
+        void rowChanged(String table, Map<String, Object> before, Map<String, Object> after) {
+            AuditRecord record = new AuditRecord(System.currentTimeMillis(), user, table, before, after);
+            if (!ring.offer(record)) {
+                overflow.add(record);
+                LockSupport.unpark(writer);
+            }
+        }
+
+        /** null — журнал пишется; иначе описание проблемы для пользователя. */
+        String problem() {
+            List<String> parts = new ArrayList<>();
+            String error = lastError;
+            if (error != null) parts.add("нет записи в БД (" + error + "), повтор…");
+            if (pendingInFile > 0) parts.add(pendingInFile + " зап. ждут в " + OVERFLOW_FILE);
+            if (deadLettered > 0) {
+                parts.add(deadLettered + " зап. отложено в " + AUDIT_DIR.resolve("audit-failed-*.csv") + " (" + deadLetterReason + ")");
+            }
+            if (dropped.get() > 0) parts.add(dropped.get() + " зап. потеряно");
+            return parts.isEmpty() ? null : "Журнал изменений: " + String.join("; ", parts);
+        }
+
+        /** Дописать всё из очереди и остановить поток записи (не дольше AUDIT_SHUTDOWN_MS). */
+        void close() {
+            stopped = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(AUDIT_SHUTDOWN_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<AuditRecord> batch = new ArrayList<>(AUDIT_BATCH);
+            long retryAt = 0;
+            while (true) {
+                boolean stopping = stopped;
+                spillOverflow();
+                long wait = retryAt - System.currentTimeMillis();
+                if (wait > 0 && !stopping) {
+                    // Пауза после ошибки; переполнение будит поток раньше — только чтобы сбросить его в файл
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(wait));
+                    continue;
+                }
+                AuditRecord record;
+                while (batch.size() < AUDIT_BATCH && (record = ring.poll()) != null) batch.add(record);
+                if (batch.isEmpty()) {
+                    if (stopping) return;
+                    if (pendingInFile > 0 && !Boolean.FALSE.equals(copySupported) && !replayOverflow()) {
+                        retryAt = System.currentTimeMillis() + retryMs;
+                    } else {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(AUDIT_FLUSH_MS));
+                    }
+                    continue;
+                }
+                if (stopping && lastError != null) {
+                    // БД недоступна, ждать некогда: всё оставшееся — в файл переполнения
+                    while ((record = ring.poll()) != null) batch.add(record);
+                    appendOverflow(toCsv(batch), batch.size());
+                    spillOverflow();
+                    return;
+                }
+                if (send(batch)) {
+                    batch.clear();
+                } else {
+                    retryAt = System.currentTimeMillis() + retryMs;
+                }
+            }
+        }
+
+        private void spillOverflow() {
+            if (overflow.isEmpty()) return;
+            List<AuditRecord> records = new ArrayList<>();
+            AuditRecord record;
+            while ((record = overflow.poll()) != null) records.add(record);
+            appendOverflow(toCsv(records), records.size());
+        }
+
+        /** true — пакет записан или отложен в файл; false — временная ошибка, пакет нужно повторить. */
+        private boolean send(List<AuditRecord> batch) {
+            try {
+                write(batch);
+                recovered();
+                return true;
+            } catch (SQLException e) {
+                if (retryLater(e)) return false;
+                deadLetter(toCsv(batch), batch.size(), e);
+                return true;
+            }
+        }
+
+        /** Догрузка файла переполнения; false — не удалось, файл остаётся до следующей попытки. */
+        private boolean replayOverflow() {
+            String csv;
+            try {
+                csv = Files.readString(OVERFLOW_FILE);
+                Files.delete(OVERFLOW_FILE);
+            } catch (IOException e) {
+                if (!overflowFailed) e.printStackTrace();
+                overflowFailed = true;
+                retryMs = AUDIT_RETRY_MAX_MS;
+                return false;
+            }
+            long count = pendingInFile;
+            pendingInFile = 0;
+            try (Connection conn = target.getConnection()) {
+                copySupported = copyIn(conn, csv);
+                if (!copySupported) {
+                    // Без Copy API файл не разобрать обратно в записи — остаётся для загрузки через \copy
+                    appendOverflow(csv, count);
+                    return true;
+                }
+                recovered();
+                return true;
+            } catch (SQLException e) {
+                if (retryLater(e)) {
+                    appendOverflow(csv, count);
+                    return false;
+                }
+                deadLetter(csv, count, e);
+                return true;
+            }
+        }
+
+        private void recovered() {
+            if (lastError != null) System.err.println("Аудит: запись в audit_log восстановлена");
+            lastError = null;
+            retryMs = 0;
+        }
+
+        /** Временная ошибка: пауза растёт до AUDIT_RETRY_MAX_MS, трассировка — одна на весь сбой. */
+        private boolean retryLater(SQLException e) {
+            if (!isTransient(e)) return false;
+            if (lastError == null) e.printStackTrace();
+            lastError = e.getMessage();
+            retryMs = retryMs == 0 ? AUDIT_FLUSH_MS : Math.min(retryMs * 2, AUDIT_RETRY_MAX_MS);
+            return true;
+        }
+
+        /** Временные: нет связи (08), конфликт (40), нехватка ресурсов (53), перезапуск (57P), ошибка без SQLState. */
+        private static boolean isTransient(SQLException e) {
+            if (e instanceof SQLTransientException || e instanceof SQLRecoverableException) return true;
+            String state = e.getSQLState();
+            return state == null || state.startsWith("08") || state.startsWith("40")
+                    || state.startsWith("53") || state.startsWith("57P");
+        }
+
+        /** Пакет, который БД не примет никогда, откладывается в отдельный файл. */
+        private void deadLetter(String csv, long count, SQLException e) {
+            if (!Objects.equals(e.getMessage(), deadLetterReason)) e.printStackTrace();
+            Path file = AUDIT_DIR.resolve("audit-failed-" + System.currentTimeMillis() + "-" + (++deadLetterFiles) + ".csv");
+            try {
+                Files.createDirectories(AUDIT_DIR);
+                Files.writeString(file, csv, StandardOpenOption.CREATE_NEW);
+                deadLetterReason = e.getMessage();
+                deadLettered += count;
+                System.err.println("Аудит: " + count + " зап. отложено в " + file);
+            } catch (IOException io) {
+                io.printStackTrace();
+                dropped.addAndGet(count);
+            }
+        }
+
+        private void appendOverflow(String csv, long count) {
+            try {
+                Files.createDirectories(AUDIT_DIR);
+                Files.writeString(OVERFLOW_FILE, csv, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                pendingInFile += count;
+                overflowFailed = false;
+            } catch (IOException e) {
+                if (!overflowFailed) e.printStackTrace();
+                overflowFailed = true;
+                dropped.addAndGet(count);
+            }
+        }
+
+        private static long countLines(Path file) {
+            try (Stream<String> lines = Files.lines(file)) {
+                return lines.count();
+            } catch (IOException | UncheckedIOException e) {
+                return 0;
+            }
+        }
+
+        private void write(List<AuditRecord> batch) throws SQLException {
+            try (Connection conn = target.getConnection()) {
+                if (copySupported == null || copySupported) {
+                    copySupported = copyIn(conn, toCsv(batch));
+                    if (copySupported) return;
+                }
+                conn.setAutoCommit(false);
+                try (PreparedStatement stmt = conn.prepareStatement(INSERT_SQL)) {
+                    for (AuditRecord r : batch) {
+                        stmt.setTimestamp(1, new Timestamp(r.changedAtMillis));
+                        stmt.setString(2, r.user);
+                        stmt.setString(3, r.table);
+                        stmt.setString(4, pk(r));
+                        stmt.setString(5, op(r));
+                        stmt.setString(6, diff(r));
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+                conn.commit();
+            }
+        }
+
+        /** COPY через CopyManager драйвера PostgreSQL; false — драйвер без Copy API. */
+        private static boolean copyIn(Connection conn, String csv) throws SQLException {
+            Object copyApi;
+            Method copyInMethod;
+            try {
+                Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+                copyApi = pgConnection.getMethod("getCopyAPI").invoke(conn.unwrap(pgConnection));
+                copyInMethod = copyApi.getClass().getMethod("copyIn", String.class, Reader.class);
+            } catch (ReflectiveOperationException e) {
+                return false;
+            }
+            try {
+                copyInMethod.invoke(copyApi, COPY_SQL, new StringReader(csv));
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) throw (SQLException) cause;
+                throw new SQLException("COPY в audit_log не выполнен", cause);
+            } catch (IllegalAccessException e) {
+                return false;
+            }
+            return true;
+        }
+
+        /** Записи в формате COPY ... WITH (FORMAT csv) — для COPY, файла переполнения и отложенных пакетов. */
+        private static String toCsv(List<AuditRecord> batch) {
+            StringBuilder csv = new StringBuilder(batch.size() * 128);
+            for (AuditRecord r : batch) {
+                csv.append(Instant.ofEpochMilli(r.changedAtMillis)).append(',');
+                csvField(csv, r.user).append(',');
+                csvField(csv, r.table).append(',');
+                csvField(csv, pk(r)).append(',');
+                csv.append(op(r)).append(',');
+                csvField(csv, diff(r)).append('\n');
+            }
+            return csv.toString();
+        }
+
+        /** Поле CSV; NULL — пустое поле без кавычек. */
+        private static StringBuilder csvField(StringBuilder csv, String value) {
+            if (value == null) return csv;
+            return csv.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+
+        private static String op(AuditRecord r) {
+            return r.before == null ? "I" : r.after == null ? "D" : "U";
+        }
+
+        /** Первичный ключ — первый столбец строки (так строки собирают getRowData и RETURNING *). */
+        private static String pk(AuditRecord r) {
+            Map<String, Object> row = r.after != null ? r.after : r.before;
+            if (row == null || row.isEmpty()) return null;
+            Object v = row.values().iterator().next();
+            return v == null ? null : v.toString();
+        }
+
+        private static String diff(AuditRecord r) {
+            StringBuilder json = new StringBuilder("{");
+            if (r.before == null || r.after == null) {
+                for (Map.Entry<String, Object> e : (r.after != null ? r.after : r.before).entrySet()) {
+                    if (isServiceValue(e.getValue())) continue;
+                    if (json.length() > 1) json.append(',');
+                    jsonString(json, e.getKey()).append(':');
+                    jsonValue(json, e.getValue());
+                }
+            } else {
+                for (Map.Entry<String, Object> e : r.after.entrySet()) {
+                    Object old = r.before.get(e.getKey());
+                    if (isServiceValue(e.getValue()) || Objects.equals(String.valueOf(old), String.valueOf(e.getValue()))) continue;
+                    if (json.length() > 1) json.append(',');
+                    jsonString(json, e.getKey()).append(":[");
+                    jsonValue(json, old).append(',');
+                    jsonValue(json, e.getValue()).append(']');
+                }
+            }
+            return json.append('}').toString();
+        }
+
+        // tsvector и прочие служебные типы драйвера (PGobject) в журнал не пишутся
+        private static boolean isServiceValue(Object v) {
+            return v != null && v.getClass().getName().startsWith("org.postgresql.");
+        }
+
+        private static StringBuilder jsonValue(StringBuilder json, Object v) {
+            if (v == null) return json.append("null");
+            // NaN и бесконечности — не числа JSON: jsonb их не примет
+            if ((v instanceof Double || v instanceof Float) && !Double.isFinite(((Number) v).doubleValue())) {
+                return jsonString(json, v.toString());
+            }
+            if (v instanceof Number || v instanceof Boolean) return json.append(v);
+            return jsonString(json, v.toString());
+        }
+
+        private static StringBuilder jsonString(StringBuilder json, String s) {
+            json.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"' -> json.append("\\\"");
+                    case '\\' -> json.append("\\\\");
+                    case '\n' -> json.append("\\n");
+                    case '\r' -> json.append("\\r");
+                    case '\t' -> json.append("\\t");
+                    default -> {
+                        if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+                        else json.append(c);
+                    }
+                }
+            }
+            return json.append('"');
+        }
+    }
+
+    // ————————————————————————————————————————————————
+    // Meta FK
+    // ————————————————————————————————————————————————
+
+    private static class ColumnInfo {
+        String name, type;
+        boolean generated; // GENERATED ALWAYS ... STORED — только для чтения
+        ColumnInfo(String name, String type) { this.name = name; this.type = type; }
+    }
+
+    private static class ForeignKeyInfo {
+        String refTable, refPK, displayColumn;
+        ForeignKeyInfo(String refTable, String refPK, String displayColumn) {
+            this.refTable = refTable; this.refPK = refPK; this.displayColumn = displayColumn;
+        }
+    }
+
+    private Map<String, ForeignKeyInfo> getForeignKeys(String table) {
+        Map<String, ForeignKeyInfo> fks = foreignKeyCache.computeIfAbsent(table, this::loadForeignKeys);
+        return fks != null ? fks : Map.of();
+    }
+
+    private Map<String, ForeignKeyInfo> loadForeignKeys(String table) {
+        Map<String, ForeignKeyInfo> map = new HashMap<>();
+        String sql = """
+            SELECT
+                kcu.column_name,
+                ccu.table_name AS foreign_table_name,
+                ccu.column_name AS foreign_column_name
+            FROM information_schema.table_constraints tc
+            JOIN information_schema.key_column_usage kcu ON tc.constraint_name = kcu.constraint_name
+            JOIN information_schema.constraint_column_usage ccu ON ccu.constraint_name = tc.constraint_name
+            WHERE tc.constraint_type = 'FOREIGN KEY' AND tc.table_name = ?
+            """;
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, table);
+            try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
                     String col = rs.getString("column_name");
                     String rt = rs.getString("foreign_table_name");
@@ -396,190 +2013,2047 @@ public class Hospital {
                     map.put(col, new ForeignKeyInfo(rt, rp, dc));
                 }
             }
-        } catch (SQLException e) { e.printStackTrace(); }
-        return map;
-    }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null; // не кэшируем ошибку
+        }
+        return map;
+    }
+
+    /** Справочник — целиком из кэша; большая таблица (пациенты) — первые EDITOR_ITEMS_LIMIT записей и selected. */
+    private List<FKItem> getReferenceItems(String refTable, Object selected) {
+        if (!isReferenceTable(refTable)) return loadBoundedItems(refTable, selected);
+        ReferenceDictionary dict = getDictionary(refTable);
+        return dict != null ? dict.items() : List.of(new FKItem(null, "Ошибка загрузки"));
+    }
+
+    private static boolean isReferenceTable(String table) {
+        return Arrays.asList(REFERENCE_TABLES).contains(table);
+    }
+
+    /** Справочники (REFERENCE_TABLES) грузятся один раз и перечитываются в фоне после записи в них. */
+    private ReferenceDictionary getDictionary(String refTable) {
+        ReferenceDictionary cached = dictionaries.get(refTable);
+        if (cached != null) return cached;
+        ReferenceDictionary dict = loadDictionary(refTable);
+        if (dict != null) dictionaries.put(refTable, dict);
+        return dict;
+    }
+
+    private List<FKItem> loadBoundedItems(String refTable, Object selected) {
+        List<ColumnInfo> refCols = getTableStructure(refTable);
+        if (refCols.isEmpty()) return List.of(new FKItem(null, "Ошибка загрузки"));
+        String refPK = refCols.get(0).name;
+        String displayColumn = getDisplayColumnForTable(refTable);
+
+        String sql = "(SELECT " + refPK + ", " + displayColumn + " FROM " + refTable + " ORDER BY 2 LIMIT " + EDITOR_ITEMS_LIMIT + ")"
+                + " UNION SELECT " + refPK + ", " + displayColumn + " FROM " + refTable + " WHERE " + refPK + " = ?"
+                + " ORDER BY 2";
+        List<FKItem> items = new ArrayList<>();
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setObject(1, selected instanceof Number ? ((Number) selected).intValue() : null, Types.INTEGER);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String name = rs.getString(2);
+                    items.add(new FKItem(rs.getInt(1), name == null ? "(null)" : name));
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return List.of(new FKItem(null, "Ошибка загрузки"));
+        }
+        return items;
+    }
+
+    private ReferenceDictionary loadDictionary(String refTable) {
+        List<ColumnInfo> refCols = getTableStructure(refTable);
+        if (refCols.isEmpty()) return null;
+        String refPK = refCols.get(0).name;
+        String displayColumn = getDisplayColumnForTable(refTable);
+
+        String sql = "SELECT " + refPK + ", " + displayColumn + " FROM " + refTable + " ORDER BY " + displayColumn;
+        List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+        List<ConnectionPool> targets = shards.forRead(refTable);
+        for (ConnectionPool target : targets) {
+            try (Connection conn = target.getConnection();
+                 Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) {
+                    String name = rs.getString(2);
+                    entries.add(new AbstractMap.SimpleEntry<>(rs.getInt(1), name == null ? "(null)" : name));
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        // Справочник из нескольких шардов — общий порядок по подписи
+        if (targets.size() > 1) entries.sort(Map.Entry.comparingByValue(RU_COLLATOR::compare));
+
+        ReferenceDictionary dict = new ReferenceDictionary();
+        for (Map.Entry<Integer, String> e : entries) dict.add(e.getKey(), e.getValue());
+        return dict;
+    }
+
+    /**
+     * После записи в справочник он перечитывается. Удаление строки любой таблицы каскадно
+     * (ON DELETE CASCADE) удаляет ссылающиеся на неё строки — перечитываются и справочники
+     * таблиц, которые ссылаются на неё прямо или через другие таблицы.
+     */
+    private void reloadDictionary(String tableName, Map<String, Object> before, Map<String, Object> after) {
+        boolean delete = after == null;
+        if (!delete && !dictionaries.containsKey(tableName)) return;
+        CompletableFuture.runAsync(() -> {
+            Set<String> stale = new LinkedHashSet<>();
+            stale.add(tableName);
+            if (delete) stale.addAll(dependentTables(tableName));
+            for (String t : stale) {
+                if (!dictionaries.containsKey(t)) continue;
+                ReferenceDictionary dict = loadDictionary(t);
+                if (dict != null) dictionaries.put(t, dict);
+            }
+            SwingUtilities.invokeLater(table::repaint);
+        }, background);
+    }
+
+    /** Таблицы, строки которых ссылаются на tableName прямо или через цепочку FK. */
+    private Set<String> dependentTables(String tableName) {
+        Set<String> result = new LinkedHashSet<>();
+        Deque<String> queue = new ArrayDeque<>(List.of(tableName));
+        while (!queue.isEmpty()) {
+            String referenced = queue.poll();
+            for (String t : TABLES) {
+                if (result.contains(t)) continue;
+                for (ForeignKeyInfo fk : getForeignKeys(t).values()) {
+                    if (fk.refTable.equals(referenced)) {
+                        result.add(t);
+                        queue.add(t);
+                        break;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Подписи записей справочника: id → строка в IntStringMap, плюс порядок для выпадающих списков. */
+    private static class ReferenceDictionary {
+        private final IntStringMap labels = new IntStringMap();
+        private int[] order = new int[16];
+        private int size;
+        private volatile List<FKItem> items;
+
+        void add(int id, String label) {
+            if (size == order.length) order = Arrays.copyOf(order, size * 2);
+            order[size++] = id;
+            labels.put(id, label);
+        }
+
+        String label(int id) { return labels.get(id); }
+
+        List<FKItem> items() {
+            List<FKItem> result = items;
+            if (result == null) {
+                result = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) result.add(new FKItem(order[i], labels.get(order[i])));
+                items = result = Collections.unmodifiableList(result);
+            }
+            return result;
+        }
+    }
+
+    /** Хеш-таблица с открытой адресацией: ключи int без упаковки, пустая ячейка — null в values. */
+    static class IntStringMap {
+        private int[] keys = new int[16];
+        private String[] values = new String[16];
+        private int size;
+
+        String get(int key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i];
+            }
+            return null;
+        }
+
+        void put(int key, String value) {
+            if ((size + 1) * 2 > keys.length) grow();
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (values[i] != null && keys[i] != key) i = (i + 1) & mask;
+            if (values[i] == null) size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new String[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * Ячейки FK в основной таблице: подпись из справочника вместо числа, сам id — в подсказке.
+     * Описание FK текущей таблицы запоминается один раз на таблицу (при ошибке загрузки — пустое,
+     * до следующего переключения таблицы); отрисовка ячеек к БД не обращается.
+     */
+    private class ForeignKeyCellRenderer extends DefaultTableCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        private String fkTable;
+        private Map<String, ForeignKeyInfo> fks = Map.of();
+
+        private Map<String, ForeignKeyInfo> foreignKeys() {
+            if (currentTable.equals(fkTable)) return fks;
+            String t = fkTable = currentTable;
+            Map<String, ForeignKeyInfo> cached = foreignKeyCache.get(t);
+            fks = cached != null ? cached : Map.of();
+            if (cached == null) {
+                CompletableFuture.runAsync(() -> getForeignKeys(t), background).thenRun(() -> SwingUtilities.invokeLater(() -> {
+                    if (t.equals(fkTable) && foreignKeyCache.containsKey(t)) {
+                        fkTable = null;
+                        table.repaint();
+                    }
+                }));
+            }
+            return fks;
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable tbl, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
+            super.getTableCellRendererComponent(tbl, value, isSelected, hasFocus, row, column);
+            setToolTipText(null);
+            if (!(value instanceof Number)) return this;
+            ForeignKeyInfo fk = foreignKeys().get(tbl.getColumnName(column));
+            if (fk == null) return this;
+            ReferenceDictionary dict = dictionaries.get(fk.refTable);
+            String label = dict == null ? null : dict.label(((Number) value).intValue());
+            if (label != null) {
+                setText(label);
+                setToolTipText(fk.refPK + " = " + value);
+            }
+            return this;
+        }
+    }
+
+    private String getDisplayColumnForTable(String tableName) {
+        switch (tableName) {
+            case "hospitals":
+                return "name";
+            case "departments":
+                return "name";
+            case "positions":
+                return "title";
+            case "doctors":
+                return "surname || ' ' || name || ' ' || COALESCE(patronymic || '.', '')";
+            case "patients":
+                return "surname || ' ' || name";
+            case "diagnoses":
+                return "name";
+            default:
+                return "name";
+        }
+    }
+
+    // ————————————————————————————————————————————————
+    // Record Editor Dialog
+    // ————————————————————————————————————————————————
+
+    private static class RecordEditorDialog extends JDialog {
+        private final List<JComponent> editors = new ArrayList<>();
+        private final Map<String, Object> data = new LinkedHashMap<>();
+        private final List<ColumnInfo> columns;
+        private boolean confirmed = false;
+
+        public RecordEditorDialog(JFrame owner, String title, List<ColumnInfo> columns,
+                                  Map<String, ForeignKeyInfo> foreignKeys,
+                                  Map<String, List<FKItem>> foreignKeyItems,
+                                  Map<String, Object> initialData,
+                                  String pkCol) {
+            super(owner, title, true);
+            this.columns = columns;
+            setLayout(new BorderLayout());
+
+            JPanel form = new JPanel(new GridBagLayout());
+            GridBagConstraints gbc = new GridBagConstraints();
+            gbc.insets = new Insets(5, 5, 5, 5);
+            gbc.anchor = GridBagConstraints.WEST;
+            gbc.fill = GridBagConstraints.HORIZONTAL;
+
+            int row = 0;
+            for (ColumnInfo col : columns) {
+                JLabel lbl = new JLabel(capitalize(col.name) + ":");
+                gbc.gridx = 0; gbc.gridy = row;
+                form.add(lbl, gbc);
+
+                JComponent ed;
+                ForeignKeyInfo fk = foreignKeys.get(col.name);
+                if (fk != null) {
+                    ed = createFKComboBox(foreignKeyItems.getOrDefault(col.name, List.of()), !isReferenceTable(fk.refTable));
+                } else if ("date".equals(col.type)) {
+                    ed = new JTextField(10);
+                    ed.setToolTipText("Формат: ГГГГ-ММ-ДД");
+                } else if ("timestamp with time zone".equals(col.type) || "timestamptz".equals(col.type)) {
+                    ed = new JTextField(20);
+                    ed.setToolTipText("Формат: ГГГГ-ММ-ДД ЧЧ:МИ:СС+03 (напр. 2025-12-01 14:30:00+03)");
+                } else {
+                    ed = new JTextField(20);
+                }
+                editors.add(ed);
+                gbc.gridx = 1; gbc.weightx = 1.0;
+                form.add(ed, gbc);
+
+                if (initialData != null && initialData.containsKey(col.name)) {
+                    Object val = initialData.get(col.name);
+                    if (ed instanceof JComboBox) {
+                        JComboBox<?> cb = (JComboBox<?>) ed;
+                        for (int i = 0; i < cb.getItemCount(); i++) {
+                            FKItem item = (FKItem) cb.getItemAt(i);
+                            if (Objects.equals(item.id, val)) {
+                                cb.setSelectedIndex(i);
+                                break;
+                            }
+                        }
+                    } else if (ed instanceof JTextField tf) {
+                        tf.setText(val == null ? "" : val.toString());
+                    }
+                }
+                row++;
+            }
+
+            JPanel btns = new JPanel(new FlowLayout());
+            JButton ok = new JButton("Сохранить");
+            JButton cancel = new JButton("Отмена");
+            ok.addActionListener(e -> {
+                confirmed = true;
+                fillData(foreignKeys);
+                if (confirmed) dispose();
+            });
+            cancel.addActionListener(e -> dispose());
+            btns.add(ok); btns.add(cancel);
+
+            add(new JScrollPane(form), BorderLayout.CENTER);
+            add(btns, BorderLayout.SOUTH);
+
+            pack();
+            setMinimumSize(new Dimension(450, 200));
+            setLocationRelativeTo(owner);
+        }
+
+        /** partial — в списке не все записи таблицы: номер записи можно ввести вручную. */
+        private JComboBox<FKItem> createFKComboBox(List<FKItem> items, boolean partial) {
+            JComboBox<FKItem> cb = new JComboBox<>();
+            cb.addItem(new FKItem(null, "-- не выбрано --"));
+            for (FKItem item : items) cb.addItem(item);
+            if (partial) {
+                cb.setEditable(true);
+                cb.setToolTipText("Выберите из списка или введите номер записи");
+            }
+            return cb;
+        }
+
+        private void fillData(Map<String, ForeignKeyInfo> foreignKeys) {
+            data.clear();
+            for (int i = 0; i < columns.size(); i++) {
+                ColumnInfo col = columns.get(i);
+                JComponent ed = editors.get(i);
+                Object val = null;
+
+                if (ed instanceof JComboBox) {
+                    Object selected = ((JComboBox<?>) ed).getSelectedItem();
+                    if (selected instanceof FKItem item) {
+                        val = item.id;
+                    } else if (selected != null && !selected.toString().isBlank()) {
+                        try {
+                            val = Integer.parseInt(selected.toString().trim());
+                        } catch (NumberFormatException ex) {
+                            err("Поле " + col.name + ": выберите запись из списка или введите её номер.");
+                            return;
+                        }
+                    }
+                } else if (ed instanceof JTextField tf) {
+                    String s = tf.getText().trim();
+                    if (!s.isEmpty()) {
+                        if ("date".equals(col.type)) {
+                            try {
+                                val = java.sql.Date.valueOf(s);
+                            } catch (Exception ex) {
+                                err("Неверный формат даты: " + s + ". Используйте ГГГГ-ММ-ДД.");
+                                return;
+                            }
+                        } else if ("timestamp with time zone".equals(col.type) || "timestamptz".equals(col.type)) {
+                            try {
+                                s = s.replace(" ", "T");
+                                if (!s.contains("T")) s += "T00:00:00";
+                                if (!s.contains("+") && !s.contains("Z")) s += "+03:00";
+                                Instant inst = Instant.from(DateTimeFormatter.ISO_OFFSET_DATE_TIME.parse(s));
+                                val = java.sql.Timestamp.from(inst);
+                            } catch (Exception ex) {
+                                err("Неверный формат времени. Пример: 2025-12-01 14:30:00+03");
+                                return;
+                            }
+                        } else {
+                            val = s;
+                        }
+                    }
+                }
+                data.put(col.name, val);
+            }
+        }
+
+        private void err(String msg) {
+            JOptionPane.showMessageDialog(this, msg, "Ошибка ввода", JOptionPane.ERROR_MESSAGE);
+            confirmed = false;
+        }
+
+        public boolean isConfirmed() { return confirmed; }
+        public Map<String, Object> getData() { return data; }
+    }
+
+    private static class FKItem {
+        final Object id;
+        final String label;
+        FKItem(Object id, String label) {
+            this.id = id;
+            this.label = label;
+        }
+        @Override public String toString() {
+            return label;
+        }
+    }
+
+    // ————————————————————————————————————————————————
+    // Поиск пациентов
+    // ————————————————————————————————————————————————
+
+    private static final int PATIENT_SEARCH_LIMIT = 100;
+    private static final int PATIENT_INDEX_REFRESH_SEC = Integer.getInteger("hospital.patientIndex.refreshSec", 30);
+    // Каждая такая по счёту проверка — полная пересборка (при 30 с — раз в 10 минут)
+    private static final int PATIENT_INDEX_RELOAD_EVERY = 20;
+
+    /** Полная загрузка при старте, затем каждые PATIENT_INDEX_REFRESH_SEC — новые пациенты других клиентов. */
+    private void buildPatientIndex() {
+        indexExecutor.execute(this::reloadPatientIndex);
+        indexExecutor.scheduleWithFixedDelay(this::refreshPatientIndex,
+                PATIENT_INDEX_REFRESH_SEC, PATIENT_INDEX_REFRESH_SEC, TimeUnit.SECONDS);
+    }
+
+    private void reloadPatientIndex() {
+        try (Connection conn = pool.getConnection()) {
+            patientIndex = PatientSearchIndex.load(conn);
+        } catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Новые и изменённые другими клиентами пациенты подгружаются дельтой (по xmin). Удаления
+     * дельта не видит — для них индекс периодически строится заново.
+     */
+    private void refreshPatientIndex() {
+        PatientSearchIndex index = patientIndex;
+        if (index == null || ++patientIndexRefreshes % PATIENT_INDEX_RELOAD_EVERY == 0) {
+            reloadPatientIndex();
+            return;
+        }
+        try (Connection conn = pool.getConnection()) {
+            index.loadNew(conn);
+        } catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void updatePatientIndex(String tableName, Map<String, Object> before, Map<String, Object> after) {
+        if (!"patients".equals(tableName)) return;
+        indexExecutor.execute(() -> {
+            PatientSearchIndex index = patientIndex;
+            if (index != null) index.apply(before, after); // иначе изменение войдёт в полную загрузку
+        });
+    }
+
+    private void searchPatients(String query) {
+        if (query.isBlank()) {
+            if (patientSearchActive) {
+                patientSearchActive = false;
+                if ("surname".equals(currentFilterColumn) && currentFilterValue.equals(patientSearchFilter)) {
+                    currentFilterColumn = "";
+                    currentFilterValue = "";
+                    filterValueField.setText("");
+                }
+                patientSearchFilter = null;
+                refreshTable();
+            }
+            return;
+        }
+        if (!"patients".equals(currentTable)) {
+            currentTable = "patients";
+            currentFilterColumn = "";
+            currentFilterValue = "";
+            currentSortColumn = "";
+            fillColumnCombos(getTableColumns(currentTable));
+        }
+        patientSearchActive = true;
+        PatientSearchIndex index = patientIndex;
+        if (index == null) {
+            // Индекс ещё строится — обычный фильтр по фамилии, видимый в панели фильтров
+            currentFilterColumn = "surname";
+            currentFilterValue = patientSearchFilter = query.trim();
+            filterColumnCombo.setSelectedItem("surname");
+            filterValueField.setText(currentFilterValue);
+            refreshTable();
+            return;
+        }
+        long generation = ++refreshGeneration;
+        CompletableFuture.supplyAsync(() -> loadPatientsByIds(index.search(query, PATIENT_SEARCH_LIMIT)), background)
+                .whenComplete((data, err) -> SwingUtilities.invokeLater(() -> {
+                    if (generation != refreshGeneration) {
+                        if (data != null) data.rows.close();
+                        return;
+                    }
+                    if (err != null) {
+                        err.printStackTrace();
+                        return;
+                    }
+                    tableModel.setData(data);
+                }));
+    }
+
+    /** Строки пациентов по первичному ключу в порядке ранжирования индекса. */
+    private TableData loadPatientsByIds(int[] ids) {
+        String sql = "SELECT " + selectList("patients")
+                + " FROM patients WHERE patient_id = ANY(?) ORDER BY array_position(?, patient_id)";
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            Integer[] boxed = new Integer[ids.length];
+            for (int i = 0; i < ids.length; i++) boxed[i] = ids[i];
+            Array arr = conn.createArrayOf("integer", boxed);
+            stmt.setArray(1, arr);
+            stmt.setArray(2, arr);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return readResult(rs);
+            }
+        } catch (SQLException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    /**
+     * Префиксный поиск по ФИО, ИНН и телефону. Слот пациента — id и ключ "фамилия|имя|отчество|инн|телефон"
+     * в общем char[]; база — отсортированные токены и массив слотов (CSR), новые слоты просматриваются
+     * линейно, пока база не перестроится.
+     */
+    static class PatientSearchIndex {
+        private static final int MAX_DELTA = 4096;
+        private static final int MAX_CANDIDATES = 200_000;
+        private static final int[] FIELD_WEIGHT = {8, 4, 2, 7, 6}; // фамилия, имя, отчество, ИНН, телефон
+        private static final String COLUMNS = "SELECT patient_id, surname, name, patronymic, inn, phone FROM patients";
+
+        // Слоты: ключ слота s — keyChars[keyStart[s], keyStart[s + 1])
+        private int size;
+        private int[] ids = new int[1024];
+        private int[] keyStart = new int[1025];
+        private char[] keyChars = new char[32 << 10];
+        private final BitSet deleted = new BitSet();
+        // Транзакции с номером от sinceTxid могли быть не видны прошлому чтению — их строки читаются снова
+        private long sinceTxid;
+
+        // База: слоты [0, baseSize) упорядочены по id; токен t — tokenChars[tokenStart[t], tokenStart[t + 1])
+        private int baseSize;
+        private char[] tokenChars = new char[0];
+        private int[] tokenStart = {0};
+        private int[] tokenOffsets = {0};
+        private int[] postings = new int[0];
+
+        static PatientSearchIndex load(Connection conn) throws SQLException {
+            PatientSearchIndex index = new PatientSearchIndex();
+            conn.setAutoCommit(false); // курсор: строки приходят порциями, а не целиком
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT txid_snapshot_xmin(txid_current_snapshot())")) {
+                rs.next();
+                index.sinceTxid = rs.getLong(1);
+            }
+            try (Statement stmt = conn.createStatement()) {
+                stmt.setFetchSize(10_000);
+                try (ResultSet rs = stmt.executeQuery(COLUMNS + " ORDER BY patient_id")) {
+                    while (rs.next()) index.add(rs.getInt(1), keyOf(rs));
+                }
+            }
+            conn.commit();
+            index.rebuild();
+            return index;
+        }
+
+        /**
+         * Пациенты, добавленные или изменённые другими клиентами: строки, чей xmin не старше самой
+         * ранней транзакции, ещё шедшей при прошлом чтении. xmin 32-битный, поэтому сравнивается
+         * возраст: age(xmin) считается от txid_current() этой транзакции. Удаления так не видны.
+         */
+        void loadNew(Connection conn) throws SQLException {
+            long since;
+            synchronized (this) {
+                since = sinceTxid;
+            }
+            long current, nextSince;
+            List<Integer> newIds = new ArrayList<>();
+            List<String> newKeys = new ArrayList<>();
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT txid_current(), txid_snapshot_xmin(txid_current_snapshot())")) {
+                rs.next();
+                current = rs.getLong(1);
+                nextSince = rs.getLong(2);
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(COLUMNS + " WHERE age(xmin) <= ? ORDER BY patient_id")) {
+                stmt.setLong(1, Math.min(current - since, Integer.MAX_VALUE - 1));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        newIds.add(rs.getInt(1));
+                        newKeys.add(keyOf(rs));
+                    }
+                }
+            }
+            conn.commit();
+            synchronized (this) {
+                sinceTxid = nextSince;
+                if (newIds.isEmpty()) return;
+                for (int i = 0; i < newIds.size(); i++) {
+                    remove(newIds.get(i)); // изменён или уже пришёл своей записью
+                    add(newIds.get(i), newKeys.get(i));
+                }
+                if (size - baseSize > MAX_DELTA) rebuild();
+            }
+        }
+
+        synchronized void apply(Map<String, Object> before, Map<String, Object> after) {
+            Object id = (before != null ? before : after).get("patient_id");
+            if (!(id instanceof Number)) return;
+            remove(((Number) id).intValue());
+            if (after != null) {
+                add(((Number) id).intValue(), key(str(after.get("surname")), str(after.get("name")),
+                        str(after.get("patronymic")), str(after.get("inn")), str(after.get("phone"))));
+                if (size - baseSize > MAX_DELTA) rebuild();
+            }
+        }
+
+        /** До limit id пациентов, лучшие совпадения первыми. */
+        synchronized int[] search(String query, int limit) {
+            List<List<String>> variants = parseQuery(query);
+            if (variants.isEmpty()) return new int[0];
+
+            PriorityQueue<long[]> top = new PriorityQueue<>(Comparator.<long[]>comparingLong(e -> e[0])
+                    .thenComparing(e -> -e[1]));
+            BitSet seen = new BitSet();
+            for (List<String> words : variants) {
+                // Кандидаты берём по самому узкому слову, остальные слова проверяем по ключу
+                int bestFrom = 0, bestTo = Integer.MAX_VALUE;
+                for (String w : words) {
+                    int from = tokenOffsets[lowerBound(w)];
+                    int to = tokenOffsets[lowerBound(w + Character.MAX_VALUE)];
+                    if (to - from < bestTo - bestFrom) { bestFrom = from; bestTo = to; }
+                }
+                int scanned = 0;
+                for (int p = bestFrom; p < bestTo && scanned < MAX_CANDIDATES; p++, scanned++) {
+                    int slot = postings[p];
+                    if (seen.get(slot)) continue;
+                    seen.set(slot);
+                    offer(top, slot, variants, limit);
+                }
+            }
+            for (int slot = baseSize; slot < size; slot++) offer(top, slot, variants, limit);
+
+            int[] result = new int[top.size()];
+            for (int i = result.length - 1; i >= 0; i--) result[i] = ids[(int) top.poll()[1]];
+            return result;
+        }
+
+        /**
+         * Слова запроса. Запрос только из цифр ("+7 (912) 345", "8912...") — одно слово;
+         * если он начинается с 7 или 8, дополнительно ищется без первой цифры (номер без кода страны).
+         */
+        private static List<List<String>> parseQuery(String query) {
+            String digits = query.replaceAll("[\\s()+-]", "");
+            if (!digits.isEmpty() && isDigits(digits)) {
+                List<List<String>> variants = new ArrayList<>();
+                variants.add(List.of(digits));
+                if (digits.length() > 1 && (digits.charAt(0) == '7' || digits.charAt(0) == '8')) {
+                    variants.add(List.of(digits.substring(1)));
+                }
+                return variants;
+            }
+            List<String> words = new ArrayList<>();
+            for (String w : normalize(query).split(" ")) {
+                if (!w.isEmpty()) words.add(w);
+            }
+            return words.isEmpty() ? List.of() : List.of(words);
+        }
+
+        private void offer(PriorityQueue<long[]> top, int slot, List<List<String>> variants, int limit) {
+            if (deleted.get(slot)) return;
+            int score = 0;
+            for (List<String> words : variants) score = Math.max(score, score(slot, words));
+            if (score <= 0) return;
+            top.add(new long[]{score, slot});
+            if (top.size() > limit) top.poll();
+        }
+
+        /** Сумма весов лучших полей для каждого слова; 0 — если какое-то слово не найдено. */
+        private int score(int slot, List<String> words) {
+            int keyFrom = keyStart[slot], keyTo = keyStart[slot + 1];
+            int total = 0;
+            for (String w : words) {
+                int best = 0, field = 0, start = keyFrom;
+                for (int i = keyFrom; i <= keyTo; i++) {
+                    char c = i < keyTo ? keyChars[i] : '|';
+                    if (c == ' ' || c == '|') {
+                        if (i - start >= w.length() && startsWith(keyChars, start, w)) {
+                            int s = FIELD_WEIGHT[field] * 2 + (start + w.length() == i ? 1 : 0);
+                            best = Math.max(best, s);
+                        }
+                        start = i + 1;
+                        if (c == '|') field++;
+                    }
+                }
+                if (best == 0) return 0;
+                total += best;
+            }
+            return total;
+        }
+
+        private static boolean startsWith(char[] chars, int from, String prefix) {
+            for (int i = 0; i < prefix.length(); i++) if (chars[from + i] != prefix.charAt(i)) return false;
+            return true;
+        }
+
+        private void add(int id, String key) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                keyStart = Arrays.copyOf(keyStart, size * 2 + 1);
+            }
+            int from = keyStart[size];
+            if (from + key.length() > keyChars.length) {
+                keyChars = Arrays.copyOf(keyChars, Math.max(keyChars.length * 2, from + key.length()));
+            }
+            key.getChars(0, key.length(), keyChars, from);
+            ids[size] = id;
+            keyStart[size + 1] = from + key.length();
+            size++;
+        }
+
+        private void remove(int id) {
+            int lo = 0, hi = baseSize - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ids[mid] < id) lo = mid + 1;
+                else if (ids[mid] > id) hi = mid - 1;
+                else { deleted.set(mid); break; }
+            }
+            for (int slot = baseSize; slot < size; slot++) {
+                if (ids[slot] == id) deleted.set(slot);
+            }
+        }
+
+        private String keyOf(int slot) {
+            return new String(keyChars, keyStart[slot], keyStart[slot + 1] - keyStart[slot]);
+        }
+
+        /** Компактирует живые слоты (по возрастанию id) и заново строит токены и постинги. */
+        private void rebuild() {
+            long[] order = new long[size - deleted.cardinality()];
+            int n = 0, chars = 0;
+            for (int slot = 0; slot < size; slot++) {
+                if (deleted.get(slot)) continue;
+                order[n++] = ((long) ids[slot] << 32) | slot;
+                chars += keyStart[slot + 1] - keyStart[slot];
+            }
+            Arrays.parallelSort(order);
+            int[] newIds = new int[Math.max(n, 1024)];
+            int[] newStart = new int[newIds.length + 1];
+            char[] newChars = new char[Math.max(chars, 32 << 10)];
+            for (int i = 0; i < n; i++) {
+                int slot = (int) order[i];
+                int len = keyStart[slot + 1] - keyStart[slot];
+                System.arraycopy(keyChars, keyStart[slot], newChars, newStart[i], len);
+                newStart[i + 1] = newStart[i] + len;
+                newIds[i] = ids[slot];
+            }
+            ids = newIds;
+            keyStart = newStart;
+            keyChars = newChars;
+            size = baseSize = n;
+            deleted.clear();
+
+            // Проход 1: словарь токенов и число слотов на токен
+            Map<String, Integer> dict = new HashMap<>();
+            int[] counts = new int[1024];
+            for (int slot = 0; slot < n; slot++) {
+                for (String t : slotTokens(keyOf(slot))) {
+                    int tid = dict.computeIfAbsent(t, k -> dict.size());
+                    if (tid == counts.length) counts = Arrays.copyOf(counts, tid * 2);
+                    counts[tid]++;
+                }
+            }
+            String[] sorted = dict.keySet().toArray(new String[0]);
+            Arrays.sort(sorted);
+            int[] offsets = new int[sorted.length + 1];
+            int[] cursor = new int[sorted.length];
+            int[] rankOf = new int[sorted.length];
+            int[] starts = new int[sorted.length + 1];
+            for (int r = 0; r < sorted.length; r++) {
+                int tid = dict.get(sorted[r]);
+                rankOf[tid] = r;
+                offsets[r + 1] = offsets[r] + counts[tid];
+                starts[r + 1] = starts[r] + sorted[r].length();
+            }
+            System.arraycopy(offsets, 0, cursor, 0, sorted.length);
+            char[] tchars = new char[starts[sorted.length]];
+            for (int r = 0; r < sorted.length; r++) sorted[r].getChars(0, sorted[r].length(), tchars, starts[r]);
+
+            // Проход 2: слоты идут по возрастанию, поэтому постинги каждого токена упорядочены
+            int[] post = new int[offsets[sorted.length]];
+            for (int slot = 0; slot < n; slot++) {
+                for (String t : slotTokens(keyOf(slot))) post[cursor[rankOf[dict.get(t)]]++] = slot;
+            }
+            tokenChars = tchars;
+            tokenStart = starts;
+            tokenOffsets = offsets;
+            postings = post;
+        }
+
+        private static Set<String> slotTokens(String key) {
+            Set<String> result = new LinkedHashSet<>();
+            for (String t : key.split("[ |]")) if (!t.isEmpty()) result.add(t);
+            return result;
+        }
+
+        private static String keyOf(ResultSet rs) throws SQLException {
+            return key(rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5), rs.getString(6));
+        }
+
+        private static String key(String surname, String name, String patronymic, String inn, String phone) {
+            return normalize(surname) + "|" + normalize(name) + "|" + normalize(patronymic) + "|"
+                    + normalize(inn) + "|" + phoneDigits(phone == null ? "" : phone.replaceAll("\\D", ""));
+        }
+
+        /** Нижний регистр, ё → е, всё кроме букв и цифр — разделитель слов. */
+        private static String normalize(String s) {
+            if (s == null) return "";
+            StringBuilder sb = new StringBuilder(s.length());
+            boolean space = true;
+            for (int i = 0; i < s.length(); i++) {
+                char c = Character.toLowerCase(s.charAt(i));
+                if (c == 'ё') c = 'е';
+                if (Character.isLetterOrDigit(c)) {
+                    sb.append(c);
+                    space = false;
+                } else if (!space) {
+                    sb.append(' ');
+                    space = true;
+                }
+            }
+            int len = sb.length();
+            if (len > 0 && sb.charAt(len - 1) == ' ') sb.setLength(len - 1);
+            return sb.toString();
+        }
+
+        /** Телефон без кода страны: +7 912 ... и 8 912 ... ищутся одинаково. */
+        private static String phoneDigits(String digits) {
+            if (digits.length() == 11 && (digits.charAt(0) == '7' || digits.charAt(0) == '8')) return digits.substring(1);
+            return digits;
+        }
+
+        private static boolean isDigits(String s) {
+            for (int i = 0; i < s.length(); i++) if (!Character.isDigit(s.charAt(i))) return false;
+            return true;
+        }
+
+        private static String str(Object o) {
+            return o == null ? null : o.toString();
+        }
+
+        /** Номер первого токена не меньше key (порядок — как у String.compareTo). */
+        private int lowerBound(String key) {
+            int lo = 0, hi = tokenStart.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compareToken(mid, key) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        private int compareToken(int token, String key) {
+            int from = tokenStart[token], len = tokenStart[token + 1] - from;
+            int n = Math.min(len, key.length());
+            for (int i = 0; i < n; i++) {
+                char c = tokenChars[from + i], k = key.charAt(i);
+                if (c != k) return c - k;
+            }
+            return len - key.length();
+        }
+    }
+
+    // ————————————————————————————————————————————————
+    // Дубликаты пациентов
+    // ————————————————————————————————————————————————
+
+    // Порог сходства пары (0..1), с которого она показывается как возможный дубликат
+    private static final double DEDUP_THRESHOLD = Double.parseDouble(System.getProperty("hospital.dedup.threshold", "0.85"));
+
+    private void showDuplicatePatients() {
+        JDialog dlg = new JDialog(frame, "Дубликаты пациентов", false);
+        dlg.setLayout(new BorderLayout());
+
+        JButton findBtn = new JButton("Найти");
+        JButton mergeBtn = new JButton("Объединить выбранные");
+        JLabel status = new JLabel("Сравнение пациентов с общей фамилией и датой рождения, ИНН или телефоном");
+        JTable pairTable = createReportTable(PatientDeduplicator.emptyReport());
+        pairTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        mergeBtn.setEnabled(false);
+
+        List<PatientDeduplicator.Pair> shown = new ArrayList<>();
+        Runnable showPairs = () -> {
+            ReportResult report = PatientDeduplicator.report(shown);
+            pairTable.setModel(new ReportTableModel(report));
+            ReportCellRenderer renderer = new ReportCellRenderer(report);
+            pairTable.setDefaultRenderer(Object.class, renderer);
+            pairTable.setDefaultRenderer(Number.class, renderer);
+            mergeBtn.setEnabled(!shown.isEmpty());
+        };
+
+        findBtn.addActionListener(e -> {
+            findBtn.setEnabled(false);
+            mergeBtn.setEnabled(false);
+            status.setText("Поиск…");
+            long started = System.nanoTime();
+            CompletableFuture.supplyAsync(() -> {
+                try (Connection conn = pool.getConnection()) {
+                    return PatientDeduplicator.load(conn).findDuplicates(DEDUP_THRESHOLD);
+                } catch (SQLException ex) {
+                    throw new CompletionException(ex);
+                }
+            }, background).whenComplete((found, err) -> SwingUtilities.invokeLater(() -> {
+                findBtn.setEnabled(true);
+                if (err != null) {
+                    Throwable ex = err.getCause() != null ? err.getCause() : err;
+                    status.setText("Ошибка: " + ex.getMessage());
+                    ex.printStackTrace();
+                    return;
+                }
+                shown.clear();
+                shown.addAll(found.pairs);
+                showPairs.run();
+                String text = String.format("Возможных дубликатов: %d (%.1f с)", found.pairs.size(), (System.nanoTime() - started) / 1e9);
+                if (found.skippedBlocks > 0) {
+                    text += String.format("; не проверено групп с общим ключом: %d (%d записей) — больше %d даже после разбиения",
+                            found.skippedBlocks, found.skippedRows, PatientDeduplicator.MAX_BLOCK);
+                }
+                status.setText(text);
+            }));
+        });
+
+        mergeBtn.addActionListener(e -> {
+            int[] sel = pairTable.getSelectedRows();
+            if (sel.length == 0) {
+                JOptionPane.showMessageDialog(dlg, "Выберите пары.", "Внимание", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            if (JOptionPane.NO_OPTION == JOptionPane.showConfirmDialog(dlg,
+                    "Объединить " + sel.length + " пар(ы)? Приёмы дубликата перейдут к оставляемому пациенту, дубликат будет удалён.",
+                    "Подтверждение", JOptionPane.YES_NO_OPTION)) return;
+
+            List<PatientDeduplicator.Pair> chosen = new ArrayList<>();
+            for (int viewRow : sel) chosen.add(shown.get(pairTable.convertRowIndexToModel(viewRow)));
+            findBtn.setEnabled(false);
+            mergeBtn.setEnabled(false);
+            status.setText("Объединение…");
+            // Объединения — в фоне, по одному; первая ошибка останавливает пакет
+            Set<Integer> removed = ConcurrentHashMap.newKeySet();
+            CompletableFuture.runAsync(() -> {
+                for (PatientDeduplicator.Pair p : chosen) {
+                    // Пациент мог уйти в предыдущем объединении этого же пакета
+                    if (removed.contains(p.keepId) || removed.contains(p.duplicateId)) continue;
+                    try {
+                        mergePatients(p.keepId, p.duplicateId);
+                    } catch (SQLException ex) {
+                        throw new CompletionException(ex);
+                    }
+                    removed.add(p.duplicateId);
+                }
+            }, background).whenComplete((v, err) -> SwingUtilities.invokeLater(() -> {
+                findBtn.setEnabled(true);
+                if (err != null) {
+                    Throwable ex = err.getCause() != null ? err.getCause() : err;
+                    JOptionPane.showMessageDialog(dlg, "Ошибка БД:\n" + ex.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
+                    ex.printStackTrace();
+                }
+                shown.removeIf(p -> removed.contains(p.keepId) || removed.contains(p.duplicateId));
+                showPairs.run();
+                status.setText("Объединено: " + removed.size());
+                if ("patients".equals(currentTable) || "appointments".equals(currentTable)) refreshTable();
+            }));
+        });
+
+        JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        top.add(findBtn);
+        top.add(mergeBtn);
+        top.add(status);
+
+        dlg.add(top, BorderLayout.NORTH);
+        dlg.add(new JScrollPane(pairTable), BorderLayout.CENTER);
+        dlg.setSize(1100, 500);
+        dlg.setLocationRelativeTo(frame);
+        dlg.setVisible(true);
+    }
+
+    /**
+     * Одна транзакция: пустые поля оставляемого пациента — из дубликата, приёмы — к оставляемому,
+     * дубликат удаляется. Вызывается в фоне; слушатели узнают обо всём на EDT.
+     * С шардами — то же в каждом шарде, домашний последним; после сбоя объединение можно повторить.
+     */
+    private void mergePatients(int keepId, int duplicateId) throws SQLException {
+        String fill = mergeFillSql();
+        Map<String, Object> keptBefore = new LinkedHashMap<>(), keptAfter = new LinkedHashMap<>();
+        List<Map<String, Object>> moved = new ArrayList<>();
+        Map<String, Object> deleted = new LinkedHashMap<>();
+        List<ConnectionPool> order = new ArrayList<>(shards.all());
+        order.remove(shards.home());
+        order.add(shards.home());
+        boolean found = false;
+        try {
+            for (ConnectionPool target : order) {
+                List<Map<String, Object>> shardMoved = new ArrayList<>();
+                Map<String, Object> shardDeleted = null, shardKeptBefore = null, shardKeptAfter = null;
+                try (Connection conn = target.getConnection()) {
+                    conn.setAutoCommit(false);
+                    try (PreparedStatement stmt = conn.prepareStatement("SELECT * FROM patients WHERE patient_id = ? FOR UPDATE")) {
+                        stmt.setInt(1, keepId);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            if (rs.next()) shardKeptBefore = rowMap(rs);
+                        }
+                    }
+                    if (shardKeptBefore != null && fill != null) {
+                        try (PreparedStatement stmt = conn.prepareStatement(fill)) {
+                            stmt.setInt(1, keepId);
+                            stmt.setInt(2, duplicateId);
+                            try (ResultSet rs = stmt.executeQuery()) {
+                                if (rs.next()) shardKeptAfter = rowMap(rs);
+                            }
+                        }
+                    }
+                    try (PreparedStatement stmt = conn.prepareStatement(
+                            "UPDATE appointments SET patient_id = ? WHERE patient_id = ? RETURNING *")) {
+                        stmt.setInt(1, keepId);
+                        stmt.setInt(2, duplicateId);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            while (rs.next()) shardMoved.add(rowMap(rs));
+                        }
+                    }
+                    try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM patients WHERE patient_id = ? RETURNING *")) {
+                        stmt.setInt(1, duplicateId);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            if (rs.next()) shardDeleted = rowMap(rs);
+                        }
+                    }
+                    conn.commit();
+                }
+                moved.addAll(shardMoved);
+                if (target == shards.home() && shardKeptAfter != null && !shardKeptAfter.equals(shardKeptBefore)) {
+                    keptBefore.putAll(shardKeptBefore);
+                    keptAfter.putAll(shardKeptAfter);
+                }
+                if (shardDeleted != null) {
+                    found = true;
+                    // Пациент исчезает из таблицы, только когда удалён в домашнем шарде
+                    if (target == shards.home()) deleted.putAll(shardDeleted);
+                }
+            }
+            if (!found) throw new SQLException("Пациент #" + duplicateId + " уже удалён");
+        } finally {
+            if (!keptAfter.isEmpty() || !moved.isEmpty() || !deleted.isEmpty()) {
+                SwingUtilities.invokeLater(() -> {
+                    if (!keptAfter.isEmpty()) fireRowChanged("patients", keptBefore, keptAfter);
+                    for (Map<String, Object> after : moved) {
+                        Map<String, Object> before = new LinkedHashMap<>(after);
+                        before.put("patient_id", duplicateId);
+                        fireRowChanged("appointments", before, after);
+                    }
+                    if (!deleted.isEmpty()) fireRowChanged("patients", deleted, null);
+                });
+            }
+        }
+    }
+
+    /** Оставляемый пациент (k) получает значения дубликата (d) там, где у него NULL или пустая строка. */
+    private String mergeFillSql() {
+        List<ColumnInfo> cols = getTableStructure("patients");
+        List<String> set = new ArrayList<>();
+        for (ColumnInfo col : cols) {
+            if (col.generated || col == cols.get(0)) continue;
+            boolean text = col.type.equals("text") || col.type.contains("char");
+            set.add(col.name + " = COALESCE(" + (text ? "NULLIF(k." + col.name + ", '')" : "k." + col.name) + ", d." + col.name + ")");
+        }
+        if (set.isEmpty()) return null;
+        return "UPDATE patients k SET " + String.join(", ", set) + " FROM patients d WHERE k." + cols.get(0).name
+                + " = ? AND d." + cols.get(0).name + " = ? RETURNING k.*";
+    }
+
+    private static Map<String, Object> rowMap(ResultSet rs) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (int c = 1; c <= md.getColumnCount(); c++) row.put(md.getColumnName(c), rs.getObject(c));
+        return row;
+    }
+
+    /**
+     * Дубликаты без сравнения всех со всеми: сравниваются только пары внутри блоков с общим ключом
+     * (фамилия + дата рождения, ИНН, телефон), упакованным с номером пациента в long и отсортированным.
+     * Оценка — Jaro-Winkler по ФИО плюс совпадения даты рождения, ИНН и телефона.
+     */
+    static class PatientDeduplicator {
+        private static final int MAX_BLOCK = Integer.getInteger("hospital.dedup.maxBlock", 50);
+        private static final int KEY_SURNAME_BIRTH = 1, KEY_INN = 2, KEY_PHONE = 3, KEY_SPLIT = 4;
+
+        static class Result {
+            final List<Pair> pairs;
+            final int skippedBlocks, skippedRows; // блоки больше MAX_BLOCK и после разбиения
+            Result(List<Pair> pairs, int skippedBlocks, int skippedRows) {
+                this.pairs = pairs; this.skippedBlocks = skippedBlocks; this.skippedRows = skippedRows;
+            }
+        }
+
+        static class Pair {
+            final int keepId, duplicateId;
+            final double score;
+            final String keep, duplicate, matched;
+            Pair(int keepId, int duplicateId, double score, String keep, String duplicate, String matched) {
+                this.keepId = keepId; this.duplicateId = duplicateId; this.score = score;
+                this.keep = keep; this.duplicate = duplicate; this.matched = matched;
+            }
+        }
+
+        private final int[] ids;
+        private final String[] surnames, names, patronymics, inns, phones;
+        private final int[] births; // epoch day, Integer.MIN_VALUE — не указана
+        private final String[] labels;
+        private int size;
+        private int skippedBlocks, skippedRows; // последнего candidatePairs
+
+        PatientDeduplicator(int n) {
+            ids = new int[n];
+            surnames = new String[n]; names = new String[n]; patronymics = new String[n];
+            inns = new String[n]; phones = new String[n];
+            births = new int[n];
+            labels = new String[n];
+        }
+
+        /**
+         * Все пациенты через курсор; поля сразу нормализуются в массивы, размер которых взят из
+         * count(*). Пациенты, зарегистрированные уже во время чтения, в этот проход не попадают.
+         */
+        static PatientDeduplicator load(Connection conn) throws SQLException {
+            int n;
+            try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT count(*) FROM patients")) {
+                rs.next();
+                n = rs.getInt(1);
+            }
+            PatientDeduplicator d = new PatientDeduplicator(n);
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                st.setFetchSize(10_000);
+                try (ResultSet rs = st.executeQuery(
+                        "SELECT patient_id, surname, name, patronymic, birth_date, inn, phone FROM patients ORDER BY patient_id")) {
+                    while (d.size < n && rs.next()) {
+                        java.sql.Date birth = rs.getDate(5);
+                        d.add(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                                birth == null ? null : birth.toLocalDate(), rs.getString(6), rs.getString(7));
+                    }
+                }
+            }
+            return d; // часть пациентов могли удалить после count(*)
+        }
+
+        void add(int id, String surname, String name, String patronymic, LocalDate birth, String inn, String phone) {
+            int i = size++;
+            ids[i] = id;
+            surnames[i] = PatientSearchIndex.normalize(surname);
+            names[i] = PatientSearchIndex.normalize(name);
+            patronymics[i] = PatientSearchIndex.normalize(patronymic);
+            births[i] = birth == null ? Integer.MIN_VALUE : (int) birth.toEpochDay();
+            inns[i] = PatientSearchIndex.normalize(inn);
+            phones[i] = phone == null ? "" : PatientSearchIndex.phoneDigits(phone.replaceAll("\\D", ""));
+            labels[i] = String.join(" ", Objects.toString(surname, ""), Objects.toString(name, ""),
+                    Objects.toString(patronymic, "")).trim()
+                    + (birth == null ? "" : ", " + birth)
+                    + (inn == null ? "" : ", ИНН " + inn)
+                    + (phone == null ? "" : ", тел. " + phone);
+        }
+
+        Result findDuplicates(double threshold) {
+            long[] candidates = candidatePairs();
+            // Оценка пар — по всем ядрам; порядок результата восстанавливается сортировкой
+            List<Pair> pairs = IntStream.range(0, candidates.length).parallel()
+                    .mapToObj(k -> score((int) (candidates[k] >>> 32), (int) candidates[k], threshold))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+            pairs.sort(Comparator.comparingDouble((Pair p) -> -p.score).thenComparingInt(p -> p.keepId));
+            return new Result(pairs, skippedBlocks, skippedRows);
+        }
+
+        /** Уникальные пары (i << 32 | j), i < j, из всех блоков допустимого размера. */
+        private long[] candidatePairs() {
+            int n = size;
+            long[] keys = new long[n * 3];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                if (!surnames[i].isEmpty() && births[i] != Integer.MIN_VALUE) {
+                    keys[k++] = pack(KEY_SURNAME_BIRTH, surnames[i] + "|" + births[i], i);
+                }
+                if (inns[i].length() >= 10) keys[k++] = pack(KEY_INN, inns[i], i);
+                if (phones[i].length() >= 7) keys[k++] = pack(KEY_PHONE, phones[i], i);
+            }
+            keys = Arrays.copyOf(keys, k);
+            Arrays.parallelSort(keys);
+
+            skippedBlocks = skippedRows = 0;
+            LongBuffer pairs = new LongBuffer();
+            LongBuffer split = new LongBuffer();
+            blockPairs(keys, k, pairs, split);
+            long[] subKeys = Arrays.copyOf(split.values, split.size);
+            Arrays.parallelSort(subKeys);
+            blockPairs(subKeys, subKeys.length, pairs, null);
+
+            long[] sorted = Arrays.copyOf(pairs.values, pairs.size);
+            Arrays.parallelSort(sorted);
+            int unique = 0;
+            for (int i = 0; i < sorted.length; i++) if (i == 0 || sorted[i] != sorted[i - 1]) sorted[unique++] = sorted[i];
+            return Arrays.copyOf(sorted, unique);
+        }
+
+        /**
+         * Пары всех блоков keys[0..k) размером до MAX_BLOCK. Члены больших блоков уходят в split
+         * с ключом «блок + начало фамилии + первая буква имени»; без split большой блок пропускается.
+         */
+        private void blockPairs(long[] keys, int k, LongBuffer pairs, LongBuffer split) {
+            for (int start = 0; start < k; ) {
+                int end = start + 1;
+                while (end < k && keys[end] >>> 32 == keys[start] >>> 32) end++;
+                int size = end - start;
+                if (size > MAX_BLOCK) {
+                    if (split != null) {
+                        for (int a = start; a < end; a++) {
+                            int i = (int) keys[a];
+                            String second = surnames[i].substring(0, Math.min(3, surnames[i].length())) + "|"
+                                    + names[i].substring(0, Math.min(1, names[i].length()));
+                            split.add(pack(KEY_SPLIT, (keys[a] >>> 32) + "|" + second, i));
+                        }
+                    } else {
+                        skippedBlocks++;
+                        skippedRows += size;
+                    }
+                } else if (size > 1) {
+                    for (int a = start; a < end; a++) {
+                        for (int b = a + 1; b < end; b++) {
+                            // Номера в блоке уже по возрастанию: младшие 32 бита отсортированы
+                            pairs.add((keys[a] << 32) | (keys[b] & 0xFFFFFFFFL));
+                        }
+                    }
+                }
+                start = end;
+            }
+        }
+
+        private static class LongBuffer {
+            long[] values = new long[16];
+            int size;
+
+            void add(long v) {
+                if (size == values.length) values = Arrays.copyOf(values, size * 2);
+                values[size++] = v;
+            }
+        }
+
+        private static long pack(int keyType, String key, int idx) {
+            int h = key.hashCode() * 31 + keyType;
+            h ^= h >>> 16; // перемешивание старших бит — hashCode коротких строк слабо их использует
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            return ((long) h << 32) | idx;
+        }
+
+        private Pair score(int i, int j, double threshold) {
+            double fio = 0.5 * jaroWinkler(surnames[i], surnames[j])
+                    + 0.3 * jaroWinkler(names[i], names[j])
+                    + 0.2 * jaroWinkler(patronymics[i], patronymics[j]);
+            boolean birth = births[i] != Integer.MIN_VALUE && births[i] == births[j];
+            boolean inn = !inns[i].isEmpty() && inns[i].equals(inns[j]);
+            boolean phone = !phones[i].isEmpty() && phones[i].equals(phones[j]);
+            double score = 0.7 * fio + (birth ? 0.15 : 0) + (inn ? 0.15 : 0) + (phone ? 0.1 : 0);
+            // Разные даты рождения при заполненных обеих — скорее однофамильцы
+            if (!birth && births[i] != Integer.MIN_VALUE && births[j] != Integer.MIN_VALUE) score -= 0.15;
+            if (score < threshold) return null;
+
+            List<String> matched = new ArrayList<>();
+            if (birth) matched.add("дата рождения");
+            if (inn) matched.add("ИНН");
+            if (phone) matched.add("телефон");
+            // Оставляем более раннюю регистрацию (меньший id)
+            return new Pair(ids[i], ids[j], score, labels[i], labels[j], String.join(", ", matched));
+        }
+
+        /** Сходство Jaro-Winkler (0..1), префиксный бонус — до 4 символов. */
+        static double jaroWinkler(String a, String b) {
+            if (a.equals(b)) return a.isEmpty() ? 0 : 1;
+            if (a.isEmpty() || b.isEmpty()) return 0;
+            int window = Math.max(0, Math.max(a.length(), b.length()) / 2 - 1);
+            boolean[] matchedA = new boolean[a.length()], matchedB = new boolean[b.length()];
+            int matches = 0;
+            for (int i = 0; i < a.length(); i++) {
+                int lo = Math.max(0, i - window), hi = Math.min(b.length() - 1, i + window);
+                for (int j = lo; j <= hi; j++) {
+                    if (!matchedB[j] && a.charAt(i) == b.charAt(j)) {
+                        matchedA[i] = matchedB[j] = true;
+                        matches++;
+                        break;
+                    }
+                }
+            }
+            if (matches == 0) return 0;
+            int transpositions = 0;
+            for (int i = 0, j = 0; i < a.length(); i++) {
+                if (!matchedA[i]) continue;
+                while (!matchedB[j]) j++;
+                if (a.charAt(i) != b.charAt(j)) transpositions++;
+                j++;
+            }
+            double m = matches;
+            double jaro = (m / a.length() + m / b.length() + (m - transpositions / 2.0) / m) / 3;
+            int prefix = 0;
+            while (prefix < Math.min(4, Math.min(a.length(), b.length())) && a.charAt(prefix) == b.charAt(prefix)) prefix++;
+            return jaro + prefix * 0.1 * (1 - jaro);
+        }
 
-    private String getDisplayColumnForTable(String tableName) {
-        switch (tableName) {
-            case "hospitals":
-                return "name";
-            case "departments":
-                return "name";
-            case "positions":
-                return "title";
-            case "doctors":
-                return "surname || ' ' || name || ' ' || COALESCE(patronymic || '.', '')";
-            case "patients":
-                return "surname || ' ' || name";
-            case "diagnoses":
-                return "name";
-            default:
-                return "name";
+        static ReportResult emptyReport() {
+            return new ReportResult(
+                    new String[]{"Сходство", "Оставить №", "Пациент", "Дубликат №", "Дубликат", "Совпадает"},
+                    new ColumnType[]{ColumnType.PERCENT, ColumnType.INTEGER, ColumnType.TEXT,
+                            ColumnType.INTEGER, ColumnType.TEXT, ColumnType.TEXT});
+        }
+
+        static ReportResult report(List<Pair> pairs) {
+            ReportResult report = emptyReport();
+            for (Pair p : pairs) {
+                int r = report.addRow(RowKind.DETAIL);
+                report.percent(r, 0, Math.min(100, p.score * 100))
+                      .number(r, 1, p.keepId)
+                      .text(r, 2, p.keep)
+                      .number(r, 3, p.duplicateId)
+                      .text(r, 4, p.duplicate)
+                      .text(r, 5, p.matched);
+            }
+            return report;
         }
     }
 
     // ————————————————————————————————————————————————
-    // Record Editor Dialog
+    // История пациента
     // ————————————————————————————————————————————————
 
-    private static class RecordEditorDialog extends JDialog {
-        private final List<JComponent> editors = new ArrayList<>();
-        private final Map<String, Object> data = new LinkedHashMap<>();
-        private final List<ColumnInfo> columns;
-        private boolean confirmed = false;
+    private static final int HISTORY_CACHE_SIZE = 64;
+    private static final int HISTORY_PREFETCH = 3;
+    // Свои записи сбрасывают историю сразу; записи других клиентов видны не позже чем через TTL
+    private static final long HISTORY_TTL_NANOS = TimeUnit.SECONDS.toNanos(Integer.getInteger("hospital.history.ttlSec", 60));
 
-        public RecordEditorDialog(JFrame owner, String title, List<ColumnInfo> columns,
-                                  Map<String, ForeignKeyInfo> foreignKeys,
-                                  Map<String, Object> initialData,
-                                  String pkCol) {
-            super(owner, title, true);
-            this.columns = columns;
-            setLayout(new BorderLayout());
+    private static class HistoryEntry {
+        final CompletableFuture<ReportResult> future;
+        final long loadedAt = System.nanoTime();
+        HistoryEntry(CompletableFuture<ReportResult> future) { this.future = future; }
+    }
 
-            JPanel form = new JPanel(new GridBagLayout());
-            GridBagConstraints gbc = new GridBagConstraints();
-            gbc.insets = new Insets(5, 5, 5, 5);
-            gbc.anchor = GridBagConstraints.WEST;
-            gbc.fill = GridBagConstraints.HORIZONTAL;
+    // LRU: patient_id → история (или загрузка в процессе); доступ синхронизирован на самой карте
+    private final Map<Integer, HistoryEntry> historyCache =
+            new LinkedHashMap<>(HISTORY_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, HistoryEntry> eldest) {
+                    return size() > HISTORY_CACHE_SIZE;
+                }
+            };
+    private JDialog historyDialog;
 
-            int row = 0;
-            for (ColumnInfo col : columns) {
-                JLabel lbl = new JLabel(capitalize(col.name) + ":");
-                gbc.gridx = 0; gbc.gridy = row;
-                form.add(lbl, gbc);
+    /**
+     * Окно истории следует за выделением в таблице пациентов (или приёмов): история
+     * текущего пациента берётся из кэша, истории следующих нескольких строк грузятся заранее.
+     */
+    private void showPatientHistory() {
+        if (tableModel.findColumn("patient_id") < 0) {
+            JOptionPane.showMessageDialog(frame, "Откройте таблицу пациентов или приёмов.", "Внимание", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        if (historyDialog != null) {
+            historyDialog.toFront();
+            return;
+        }
+        JDialog dlg = new JDialog(frame, "История пациента", false);
+        dlg.setLayout(new BorderLayout());
+        JLabel header = new JLabel("Выберите пациента");
+        JTable histTable = createReportTable(historyLayout());
 
-                JComponent ed;
-                ForeignKeyInfo fk = foreignKeys.get(col.name);
-                if (fk != null) {
-                    ed = loadFKComboBox(fk);
-                } else if ("date".equals(col.type)) {
-                    ed = new JTextField(10);
-                    ed.setToolTipText("Формат: ГГГГ-ММ-ДД");
-                } else if ("timestamp with time zone".equals(col.type) || "timestamptz".equals(col.type)) {
-                    ed = new JTextField(20);
-                    ed.setToolTipText("Формат: ГГГГ-ММ-ДД ЧЧ:МИ:СС+03 (напр. 2025-12-01 14:30:00+03)");
-                } else {
-                    ed = new JTextField(20);
+        ListSelectionListener follow = e -> {
+            if (!e.getValueIsAdjusting()) showHistoryForSelection(header, histTable);
+        };
+        table.getSelectionModel().addListSelectionListener(follow);
+        dlg.addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosed(java.awt.event.WindowEvent e) {
+                table.getSelectionModel().removeListSelectionListener(follow);
+                historyDialog = null;
+            }
+        });
+
+        dlg.add(header, BorderLayout.NORTH);
+        dlg.add(new JScrollPane(histTable), BorderLayout.CENTER);
+        dlg.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        dlg.setSize(900, 400);
+        dlg.setLocationRelativeTo(frame);
+        historyDialog = dlg;
+        showHistoryForSelection(header, histTable);
+        dlg.setVisible(true);
+    }
+
+    /** patient_id выделенной строки основной таблицы; null — нет выделения или столбца. */
+    private Integer selectedPatientId() {
+        int col = tableModel.findColumn("patient_id");
+        int viewRow = table.getSelectedRow();
+        if (col < 0 || viewRow < 0) return null;
+        Object id = tableModel.getValueAt(table.convertRowIndexToModel(viewRow), col);
+        return id instanceof Number ? ((Number) id).intValue() : null;
+    }
+
+    private void showHistoryForSelection(JLabel header, JTable histTable) {
+        Integer selected = selectedPatientId();
+        if (selected == null) return;
+        int patientId = selected;
+        int col = tableModel.findColumn("patient_id");
+        int viewRow = table.getSelectedRow();
+
+        header.setText("Пациент #" + patientId + ": загрузка…");
+        patientHistory(patientId).whenComplete((report, err) -> SwingUtilities.invokeLater(() -> {
+            // Сравниваем пациента, а не номер строки: после сортировки или обновления на том же месте другой
+            if (!Objects.equals(selectedPatientId(), patientId)) return;
+            if (err != null) {
+                header.setText("Пациент #" + patientId + ": ошибка загрузки");
+                err.printStackTrace();
+                return;
+            }
+            header.setText("Пациент #" + patientId + ": приёмов " + report.rowCount());
+            histTable.setModel(new ReportTableModel(report));
+            ReportCellRenderer renderer = new ReportCellRenderer(report);
+            histTable.setDefaultRenderer(Object.class, renderer);
+            histTable.setDefaultRenderer(Number.class, renderer);
+        }));
+
+        // Следующие строки — заранее, пока пользователь смотрит текущую
+        for (int r = viewRow + 1; r <= viewRow + HISTORY_PREFETCH && r < table.getRowCount(); r++) {
+            Object next = tableModel.getValueAt(table.convertRowIndexToModel(r), col);
+            if (next instanceof Number) patientHistory(((Number) next).intValue());
+        }
+    }
+
+    private CompletableFuture<ReportResult> patientHistory(int patientId) {
+        synchronized (historyCache) {
+            HistoryEntry cached = historyCache.get(patientId);
+            if (cached != null && !cached.future.isCompletedExceptionally()
+                    && System.nanoTime() - cached.loadedAt < HISTORY_TTL_NANOS) {
+                return cached.future;
+            }
+            CompletableFuture<ReportResult> f = CompletableFuture.supplyAsync(() -> loadPatientHistory(patientId), background);
+            historyCache.put(patientId, new HistoryEntry(f));
+            return f;
+        }
+    }
+
+    private void invalidatePatientHistory(String tableName, Map<String, Object> before, Map<String, Object> after) {
+        if (!"appointments".equals(tableName) && !"patients".equals(tableName)) return;
+        synchronized (historyCache) {
+            for (Map<String, Object> row : Arrays.asList(before, after)) {
+                if (row != null && row.get("patient_id") instanceof Number) {
+                    historyCache.remove(((Number) row.get("patient_id")).intValue());
                 }
-                editors.add(ed);
-                gbc.gridx = 1; gbc.weightx = 1.0;
-                form.add(ed, gbc);
+            }
+        }
+    }
 
-                if (initialData != null && initialData.containsKey(col.name)) {
-                    Object val = initialData.get(col.name);
-                    if (ed instanceof JComboBox) {
-                        JComboBox<?> cb = (JComboBox<?>) ed;
-                        for (int i = 0; i < cb.getItemCount(); i++) {
-                            FKItem item = (FKItem) cb.getItemAt(i);
-                            if (Objects.equals(item.id, val)) {
-                                cb.setSelectedIndex(i);
-                                break;
-                            }
-                        }
-                    } else if (ed instanceof JTextField tf) {
-                        tf.setText(val == null ? "" : val.toString());
+    private static ReportResult historyLayout() {
+        ColumnType[] types = new ColumnType[8];
+        Arrays.fill(types, ColumnType.TEXT);
+        return new ReportResult(
+                new String[]{"Начало", "Конец", "Статус", "Отменено", "Отделение", "Врач", "Диагноз", "Заметки"}, types);
+    }
+
+    /**
+     * Все приёмы пациента одним запросом (idx_appointments_patient_status по patient_id), новые сверху.
+     * Время отмены — из журнала appointment_events, а не из текста заметок.
+     */
+    private ReportResult loadPatientHistory(int patientId) {
+        String sql = """
+            SELECT
+                a.appointment_start,
+                a.appointment_end,
+                a.status,
+                dep.name AS department,
+                d.surname || ' ' || d.name || ' ' || COALESCE(d.patronymic || '.', '') AS doctor,
+                diag.name AS diagnosis,
+                a.notes,
+                ev.cancelled_at
+            FROM appointments a
+            JOIN doctors d ON d.doctor_id = a.doctor_id
+            JOIN departments dep ON dep.department_id = a.department_id
+            LEFT JOIN diagnoses diag ON diag.diagnosis_id = a.diagnosis_id
+            LEFT JOIN LATERAL (
+                SELECT max(e.occurred_at) AS cancelled_at
+                FROM appointment_events e
+                WHERE e.appointment_id = a.appointment_id AND e.event_type = 'cancelled'
+            ) ev ON true
+            WHERE a.patient_id = ?
+            ORDER BY a.appointment_start DESC
+            """;
+        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+        ReportResult report = historyLayout();
+        // Пациент общий для всей сети — его приёмы могут быть в каждом шарде
+        List<ConnectionPool> targets = shards.forRead("appointments");
+        for (ConnectionPool target : targets) {
+            try (Connection conn = target.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, patientId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        int r = report.addRow(RowKind.DETAIL);
+                        Timestamp cancelledAt = rs.getTimestamp("cancelled_at");
+                        report.text(r, 0, rs.getTimestamp("appointment_start").toLocalDateTime().format(fmt))
+                              .text(r, 1, rs.getTimestamp("appointment_end").toLocalDateTime().format(fmt))
+                              .text(r, 2, rs.getString("status"))
+                              .text(r, 3, cancelledAt == null ? "" : cancelledAt.toLocalDateTime().format(fmt))
+                              .text(r, 4, rs.getString("department"))
+                              .text(r, 5, rs.getString("doctor"))
+                              .text(r, 6, rs.getString("diagnosis"))
+                              .text(r, 7, rs.getString("notes"));
                     }
                 }
-                row++;
+            } catch (SQLException e) {
+                throw new CompletionException(e);
             }
+        }
+        // "yyyy-MM-dd HH:mm" упорядочивается как строка — новые сверху
+        if (targets.size() == 1) return report;
+        return report.sorted((a, b) -> report.text(b, 0).compareTo(report.text(a, 0)));
+    }
 
-            JPanel btns = new JPanel(new FlowLayout());
-            JButton ok = new JButton("Сохранить");
-            JButton cancel = new JButton("Отмена");
-            ok.addActionListener(e -> {
-                confirmed = true;
-                fillData(foreignKeys);
-                if (confirmed) dispose();
-            });
-            cancel.addActionListener(e -> dispose());
-            btns.add(ok); btns.add(cancel);
+    // ————————————————————————————————————————————————
+    // Полнотекстовый поиск по заметкам
+    // ————————————————————————————————————————————————
 
-            add(new JScrollPane(form), BorderLayout.CENTER);
-            add(btns, BorderLayout.SOUTH);
+    private static final int NOTES_SEARCH_PAGE = 20;
+    // Маркеры совпадений в ts_headline; SnippetCellRenderer рисует текст между ними жирным
+    private static final String HIT_START = "⟦", HIT_STOP = "⟧";
+    private static final String HEADLINE_OPTIONS =
+            "StartSel=" + HIT_START + ", StopSel=" + HIT_STOP + ", MaxFragments=2, MinWords=5, MaxWords=20";
 
-            pack();
-            setMinimumSize(new Dimension(450, 200));
-            setLocationRelativeTo(owner);
+    /** Где искать: tsvector-столбец (GIN-индекс), исходный текст и заголовок найденной записи. */
+    private static class NotesSource {
+        final String label, table, from, id, title, body, tsv;
+        NotesSource(String label, String table, String from, String id, String title, String body, String tsv) {
+            this.label = label; this.table = table; this.from = from;
+            this.id = id; this.title = title; this.body = body; this.tsv = tsv;
         }
+        @Override public String toString() { return label; }
+    }
 
-        private JComboBox<FKItem> loadFKComboBox(ForeignKeyInfo fk) {
-            JComboBox<FKItem> cb = new JComboBox<>();
-            cb.addItem(new FKItem(null, "-- не выбрано --"));
-            String sql = "SELECT " + fk.refPK + ", " + fk.displayColumn + " FROM " + fk.refTable + " ORDER BY " + fk.displayColumn;
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-                 Statement stmt = conn.createStatement();
-                 ResultSet rs = stmt.executeQuery(sql)) {
-                while (rs.next()) {
-                    Object id = rs.getObject(1);
-                    String name = rs.getString(2);
-                    cb.addItem(new FKItem(id, name == null ? "(null)" : name));
+    private static final NotesSource[] NOTES_SOURCES = {
+            new NotesSource("Заметки приёмов", "appointments", "appointments a JOIN patients p ON p.patient_id = a.patient_id",
+                    "a.appointment_id",
+                    "to_char(a.appointment_start, 'YYYY-MM-DD HH24:MI') || ' — ' || p.surname || ' ' || p.name",
+                    "a.notes", "a.notes_tsv"),
+            new NotesSource("Лечение по диагнозам", "diagnoses", "diagnoses dg",
+                    "dg.diagnosis_id", "dg.name", "dg.treatment_notes", "dg.treatment_notes_tsv")
+    };
+
+    private static class NotesPage {
+        final ReportResult rows;
+        final boolean hasMore;
+        NotesPage(ReportResult rows, boolean hasMore) { this.rows = rows; this.hasMore = hasMore; }
+    }
+
+    private void showNotesSearch() {
+        JDialog dlg = new JDialog(frame, "Поиск по заметкам", false);
+        dlg.setLayout(new BorderLayout());
+
+        JComboBox<NotesSource> sourceCombo = new JComboBox<>(NOTES_SOURCES);
+        JTextField queryField = new JTextField(30);
+        queryField.setToolTipText("Слова в любой форме; \"точная фраза\", -исключить, or — любое из слов");
+        JButton findBtn = new JButton("Найти");
+        JButton prevBtn = new JButton("← Назад");
+        JButton nextBtn = new JButton("Далее →");
+        JLabel status = new JLabel(" ");
+        JTable resultTable = createReportTable(notesSearchLayout());
+        prevBtn.setEnabled(false);
+        nextBtn.setEnabled(false);
+
+        int[] page = {0};
+        Runnable load = () -> {
+            NotesSource source = (NotesSource) sourceCombo.getSelectedItem();
+            String query = queryField.getText().trim();
+            if (query.isEmpty()) return;
+            int offset = page[0] * NOTES_SEARCH_PAGE;
+            findBtn.setEnabled(false);
+            prevBtn.setEnabled(false);
+            nextBtn.setEnabled(false);
+            status.setText("Поиск…");
+            long started = System.nanoTime();
+            CompletableFuture.supplyAsync(() -> searchNotes(source, query, offset), background)
+                    .whenComplete((result, err) -> SwingUtilities.invokeLater(() -> {
+                        findBtn.setEnabled(true);
+                        if (err != null) {
+                            Throwable ex = err.getCause() != null ? err.getCause() : err;
+                            status.setText("Ошибка: " + ex.getMessage());
+                            ex.printStackTrace();
+                            return;
+                        }
+                        resultTable.setModel(new ReportTableModel(result.rows));
+                        ReportCellRenderer renderer = new ReportCellRenderer(result.rows);
+                        resultTable.setDefaultRenderer(Object.class, renderer);
+                        resultTable.setDefaultRenderer(Number.class, renderer);
+                        resultTable.getColumnModel().getColumn(3).setPreferredWidth(600);
+                        resultTable.getColumnModel().getColumn(3).setCellRenderer(new SnippetCellRenderer(result.rows));
+                        prevBtn.setEnabled(page[0] > 0);
+                        nextBtn.setEnabled(result.hasMore);
+                        status.setText(String.format("Страница %d, найдено на странице: %d (%d мс)",
+                                page[0] + 1, result.rows.rowCount(), (System.nanoTime() - started) / 1_000_000));
+                    }));
+        };
+        findBtn.addActionListener(e -> { page[0] = 0; load.run(); });
+        queryField.addActionListener(e -> { page[0] = 0; load.run(); });
+        prevBtn.addActionListener(e -> { page[0]--; load.run(); });
+        nextBtn.addActionListener(e -> { page[0]++; load.run(); });
+
+        JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        top.add(sourceCombo);
+        top.add(queryField);
+        top.add(findBtn);
+        top.add(prevBtn);
+        top.add(nextBtn);
+        top.add(status);
+
+        dlg.add(top, BorderLayout.NORTH);
+        dlg.add(new JScrollPane(resultTable), BorderLayout.CENTER);
+        dlg.setSize(1100, 500);
+        dlg.setLocationRelativeTo(frame);
+        dlg.setVisible(true);
+    }
+
+    private static ReportResult notesSearchLayout() {
+        return new ReportResult(new String[]{"№", "Запись", "Релевантность", "Фрагмент"},
+                new ColumnType[]{ColumnType.INTEGER, ColumnType.TEXT, ColumnType.PERCENT, ColumnType.TEXT});
+    }
+
+    /**
+     * Одна страница результатов: отбор по GIN-индексу (tsv @@ websearch_to_tsquery), ранжирование
+     * ts_rank_cd (нормализация 32 — ранг в [0, 1)). Дорогой ts_headline считается только для строк
+     * страницы; одна лишняя строка (LIMIT page + 1) показывает, есть ли следующая страница.
+     */
+    private NotesPage searchNotes(NotesSource src, String query, int offset) {
+        String sql = "SELECT page.id, page.title, page.rank, ts_headline('russian', coalesce(page.body, ''), page.q, ?) AS snippet\n"
+                + "FROM (\n"
+                + "    SELECT " + src.id + " AS id, " + src.title + " AS title, " + src.body + " AS body,\n"
+                + "           ts_rank_cd(" + src.tsv + ", search.q, 32) AS rank, search.q\n"
+                + "    FROM " + src.from + ", (SELECT websearch_to_tsquery('russian', ?) AS q) AS search\n"
+                + "    WHERE " + src.tsv + " @@ search.q\n"
+                + "    ORDER BY rank DESC, id\n"
+                + "    LIMIT ? OFFSET ?\n"
+                + ") page\n"
+                + "ORDER BY page.rank DESC, page.id";
+        // Несколько шардов: каждый отдаёт первые offset + page + 1 строк, страница вырезается после слияния
+        List<ConnectionPool> targets = shards.forRead(src.table);
+        boolean single = targets.size() == 1;
+        ReportResult found = notesSearchLayout();
+        for (ConnectionPool target : targets) {
+            try (Connection conn = target.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, HEADLINE_OPTIONS);
+                stmt.setString(2, query);
+                stmt.setInt(3, single ? NOTES_SEARCH_PAGE + 1 : offset + NOTES_SEARCH_PAGE + 1);
+                stmt.setInt(4, single ? offset : 0);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        int r = found.addRow(RowKind.DETAIL);
+                        found.number(r, 0, rs.getLong("id"))
+                             .text(r, 1, rs.getString("title"))
+                             .percent(r, 2, rs.getDouble("rank") * 100)
+                             .text(r, 3, rs.getString("snippet").replaceAll("\\s+", " "));
+                    }
                 }
             } catch (SQLException e) {
-                e.printStackTrace();
-                cb.addItem(new FKItem(null, "Ошибка загрузки"));
+                throw new CompletionException(e);
             }
-            return cb;
         }
+        int from = single ? 0 : offset;
+        ReportResult ranked = single ? found : found.sorted(
+                Comparator.<Integer>comparingDouble(r -> -found.percent(r, 2)).thenComparingLong(r -> found.number(r, 0)));
+        ReportResult report = notesSearchLayout();
+        for (int r = from; r < Math.min(ranked.rowCount(), from + NOTES_SEARCH_PAGE); r++) report.appendRow(ranked, r);
+        return new NotesPage(report, ranked.rowCount() > from + NOTES_SEARCH_PAGE);
+    }
 
-        private void fillData(Map<String, ForeignKeyInfo> foreignKeys) {
-            data.clear();
-            for (int i = 0; i < columns.size(); i++) {
-                ColumnInfo col = columns.get(i);
-                JComponent ed = editors.get(i);
-                Object val = null;
+    /**
+     * Фрагмент ts_headline из ячейки ReportResult: текст между HIT_START и HIT_STOP рисуется
+     * жирным прямо через Graphics, без HTML-разметки JLabel.
+     */
+    private static class SnippetCellRenderer extends JComponent implements TableCellRenderer {
+        private static final long serialVersionUID = 1L;
+        private final ReportResult report;
+        private String text = "";
 
-                if (ed instanceof JComboBox) {
-                    FKItem item = (FKItem) ((JComboBox<?>) ed).getSelectedItem();
-                    val = item.id;
-                } else if (ed instanceof JTextField tf) {
-                    String s = tf.getText().trim();
-                    if (!s.isEmpty()) {
-                        if ("date".equals(col.type)) {
-                            try {
-                                val = java.sql.Date.valueOf(s);
-                            } catch (Exception ex) {
-                                err("Неверный формат даты: " + s + ". Используйте ГГГГ-ММ-ДД.");
-                                return;
-                            }
-                        } else if ("timestamp with time zone".equals(col.type) || "timestamptz".equals(col.type)) {
-                            try {
-                                s = s.replace(" ", "T");
-                                if (!s.contains("T")) s += "T00:00:00";
-                                if (!s.contains("+") && !s.contains("Z")) s += "+03:00";
-                                Instant inst = Instant.from(DateTimeFormatter.ISO_OFFSET_DATE_TIME.parse(s));
-                                val = java.sql.Timestamp.from(inst);
-                            } catch (Exception ex) {
-                                err("Неверный формат времени. Пример: 2025-12-01 14:30:00+03");
-                                return;
-                            }
-                        } else {
-                            val = s;
-                        }
+        SnippetCellRenderer(ReportResult report) {
+            this.report = report;
+            setOpaque(true);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
+            int r = table.convertRowIndexToModel(row);
+            int c = table.convertColumnIndexToModel(column);
+            text = report.isEmpty(r, c) ? "" : report.text(r, c);
+            setFont(table.getFont());
+            setBackground(isSelected ? table.getSelectionBackground() : table.getBackground());
+            setForeground(isSelected ? table.getSelectionForeground() : table.getForeground());
+            setToolTipText(text.replace(HIT_START, "").replace(HIT_STOP, ""));
+            return this;
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+            Object hints = Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+            if (hints instanceof Map<?, ?> map && g instanceof Graphics2D g2) g2.addRenderingHints(map);
+
+            Font plain = getFont(), bold = plain.deriveFont(Font.BOLD);
+            FontMetrics fm = g.getFontMetrics(plain);
+            int x = 2, y = (getHeight() - fm.getHeight()) / 2 + fm.getAscent();
+            g.setColor(getForeground());
+            boolean hit = false;
+            for (int pos = 0; pos < text.length() && x < getWidth(); hit = !hit) {
+                String marker = hit ? HIT_STOP : HIT_START;
+                int next = text.indexOf(marker, pos);
+                if (next < 0) next = text.length();
+                String part = text.substring(pos, next);
+                Font f = hit ? bold : plain;
+                g.setFont(f);
+                g.drawString(part, x, y);
+                x += g.getFontMetrics(f).stringWidth(part);
+                pos = next + marker.length();
+            }
+        }
+    }
+
+    // ————————————————————————————————————————————————
+    // Советник индексов
+    // ————————————————————————————————————————————————
+
+    // Планы дешевле этого не анализируются: на маленьких таблицах Seq Scan и так оптимален
+    private static final double ADVISOR_MIN_COST = Double.parseDouble(System.getProperty("hospital.advisor.minCost", "1000"));
+
+    /** Форма запроса refreshTable (без значения фильтра) и сколько раз она выполнялась. */
+    private static class QueryUsage {
+        final String table, selectList, filterColumn, sortColumn, sortOrder;
+        long count;
+        String sampleValue = "";
+        QueryUsage(String table, String selectList, String filterColumn, String sortColumn, String sortOrder) {
+            this.table = table; this.selectList = selectList;
+            this.filterColumn = filterColumn; this.sortColumn = sortColumn; this.sortOrder = sortOrder;
+        }
+
+        /** Согласованная копия счётчика и образца (запись идёт под тем же монитором). */
+        synchronized QueryUsage snapshot() {
+            QueryUsage copy = new QueryUsage(table, selectList, filterColumn, sortColumn, sortOrder);
+            copy.count = count;
+            copy.sampleValue = sampleValue;
+            return copy;
+        }
+    }
+
+    private final Map<String, QueryUsage> queryUsage = new ConcurrentHashMap<>();
+
+    private void recordQueryUsage(String tableName, String filterColumn, String filterValue, String sortColumn, String sortOrder) {
+        boolean filtered = !filterColumn.isEmpty() && !filterValue.isEmpty();
+        if (!filtered && sortColumn.isEmpty()) return;
+        String fc = filtered ? filterColumn : "";
+        String key = tableName + "|" + fc + "|" + sortColumn + "|" + sortOrder;
+        QueryUsage u = queryUsage.computeIfAbsent(key, k -> new QueryUsage(tableName, selectList(tableName), fc, sortColumn, sortOrder));
+        synchronized (u) {
+            u.count++;
+            if (filtered) u.sampleValue = filterValue;
+        }
+    }
+
+    private void showIndexAdvisor() {
+        JDialog dlg = new JDialog(frame, "Советник индексов", false);
+        dlg.setLayout(new BorderLayout());
+
+        JCheckBox applyBox = new JCheckBox("Создавать индексы (CREATE INDEX CONCURRENTLY)");
+        JButton analyzeBtn = new JButton("Анализировать");
+        JLabel status = new JLabel("Запросов в статистике: " + queryUsage.size());
+        JTable advTable = createReportTable(IndexAdvisor.emptyReport());
+
+        analyzeBtn.addActionListener(e -> {
+            analyzeBtn.setEnabled(false);
+            status.setText("Анализ…");
+            List<QueryUsage> usage = new ArrayList<>();
+            for (QueryUsage u : queryUsage.values()) usage.add(u.snapshot());
+            boolean apply = applyBox.isSelected();
+            CompletableFuture.supplyAsync(() -> {
+                try (Connection conn = pool.getConnection()) {
+                    // Индекс создаётся во всех шардах, чтобы их схемы не расходились; план — по домашнему
+                    return new IndexAdvisor(conn, apply ? shards.all() : List.of()).analyze(usage);
+                } catch (SQLException ex) {
+                    throw new CompletionException(ex);
+                }
+            }, background).whenComplete((report, err) -> SwingUtilities.invokeLater(() -> {
+                analyzeBtn.setEnabled(true);
+                if (err != null) {
+                    Throwable ex = err.getCause() != null ? err.getCause() : err;
+                    status.setText("Ошибка: " + ex.getMessage());
+                    ex.printStackTrace();
+                    return;
+                }
+                advTable.setModel(new ReportTableModel(report));
+                ReportCellRenderer renderer = new ReportCellRenderer(report);
+                advTable.setDefaultRenderer(Object.class, renderer);
+                advTable.setDefaultRenderer(Number.class, renderer);
+                status.setText("Проанализировано запросов: " + usage.size());
+            }));
+        });
+
+        JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        top.add(applyBox);
+        top.add(analyzeBtn);
+        top.add(status);
+
+        dlg.add(top, BorderLayout.NORTH);
+        dlg.add(new JScrollPane(advTable), BorderLayout.CENTER);
+        dlg.setSize(1000, 400);
+        dlg.setLocationRelativeTo(frame);
+        dlg.setVisible(true);
+    }
+
+    /**
+     * EXPLAIN каждой наблюдавшейся формы запроса: на Seq Scan под ILIKE '%…%' — GIN pg_trgm, на Sort — B-tree.
+     * Стоимость «после» — по созданному индексу или по гипотетическому из hypopg, если он установлен.
+     */
+    private static class IndexAdvisor {
+        private static final Pattern NODE_TYPE = Pattern.compile("\"Node Type\": \"([^\"]+)\"");
+        private static final Pattern TOTAL_COST = Pattern.compile("\"Total Cost\": ([0-9.]+)");
+
+        private final Connection conn;
+        private final List<ConnectionPool> applyTo; // пусто — только предлагать
+        private final boolean hypopg;
+
+        IndexAdvisor(Connection conn, List<ConnectionPool> applyTo) throws SQLException {
+            this.conn = conn;
+            this.applyTo = applyTo;
+            this.hypopg = hasExtension("hypopg");
+        }
+
+        static ReportResult emptyReport() {
+            return new ReportResult(
+                    new String[]{"Таблица", "Фильтр (ILIKE)", "Сортировка", "Выполнений", "План", "Стоимость до",
+                            "Индекс", "Стоимость после", "Статус"},
+                    new ColumnType[]{ColumnType.TEXT, ColumnType.TEXT, ColumnType.TEXT, ColumnType.INTEGER, ColumnType.TEXT,
+                            ColumnType.INTEGER, ColumnType.TEXT, ColumnType.INTEGER, ColumnType.TEXT});
+        }
+
+        ReportResult analyze(List<QueryUsage> usage) throws SQLException {
+            usage.sort(Comparator.comparingLong((QueryUsage u) -> u.count).reversed());
+            ReportResult report = emptyReport();
+            for (QueryUsage u : usage) {
+                String sql = shapeSql(u);
+                String plan = explain(sql, u.sampleValue);
+                double before = totalCost(plan);
+                Set<String> nodes = nodeTypes(plan);
+
+                String ddl = null, indexName = null;
+                if (before >= ADVISOR_MIN_COST) {
+                    if (!u.filterColumn.isEmpty() && nodes.contains("Seq Scan")) {
+                        indexName = "idx_adv_" + u.table + "_" + u.filterColumn + "_trgm";
+                        ddl = "CREATE INDEX CONCURRENTLY IF NOT EXISTS " + indexName + " ON "
+                                + u.table + " USING gin ((" + u.filterColumn + "::text) gin_trgm_ops)";
+                    } else if (!u.sortColumn.isEmpty() && nodes.contains("Sort")) {
+                        indexName = "idx_adv_" + u.table + "_" + u.sortColumn;
+                        ddl = "CREATE INDEX CONCURRENTLY IF NOT EXISTS " + indexName + " ON "
+                                + u.table + " (" + u.sortColumn + ")";
+                    }
+                }
+
+                Double after = null;
+                String state;
+                if (ddl == null) {
+                    state = before < ADVISOR_MIN_COST ? "дёшево, индекс не нужен" : "индекс не поможет";
+                } else if (!applyTo.isEmpty()) {
+                    state = createEverywhere(indexName, ddl);
+                    try {
+                        after = totalCost(explain(sql, u.sampleValue));
+                    } catch (SQLException e) {
+                        state += "; оценка: " + e.getMessage();
+                    }
+                } else if (hypopg && !ddl.contains("USING gin")) {
+                    after = hypotheticalCost(ddl, sql, u.sampleValue);
+                    state = "предложен (оценка hypopg)";
+                } else {
+                    state = "предложен";
+                }
+
+                int r = report.addRow(RowKind.DETAIL);
+                report.text(r, 0, u.table)
+                      .text(r, 1, u.filterColumn)
+                      .text(r, 2, u.sortColumn.isEmpty() ? "" : u.sortColumn + " " + u.sortOrder)
+                      .number(r, 3, u.count)
+                      .text(r, 4, String.join(", ", nodes))
+                      .number(r, 5, Math.round(before))
+                      .text(r, 6, ddl == null ? "" : ddl)
+                      .text(r, 8, state);
+                if (after != null) report.number(r, 7, Math.round(after));
+            }
+            return report;
+        }
+
+        /** Статус по каждому шарду; ошибка в одном шарде не мешает остальным. */
+        private String createEverywhere(String indexName, String ddl) {
+            List<String> states = new ArrayList<>();
+            for (int n = 0; n < applyTo.size(); n++) {
+                String state;
+                try (Connection target = applyTo.get(n).getConnection()) {
+                    state = createIndex(target, indexName, ddl);
+                } catch (SQLException e) {
+                    state = "ошибка: " + e.getMessage();
+                }
+                states.add(applyTo.size() == 1 ? state : "шард " + (n + 1) + ": " + state);
+            }
+            return String.join("; ", states);
+        }
+
+        /**
+         * CONCURRENTLY работает только в autocommit, вне транзакции. Прерванное построение
+         * оставляет индекс с indisvalid = false, который IF NOT EXISTS молча пропустил бы:
+         * такой индекс удаляется до и после попытки.
+         */
+        private static String createIndex(Connection conn, String indexName, String ddl) throws SQLException {
+            Boolean valid = indexValid(conn, indexName);
+            if (Boolean.TRUE.equals(valid)) return "уже есть";
+            try (Statement stmt = conn.createStatement()) {
+                if (valid != null) stmt.execute("DROP INDEX CONCURRENTLY IF EXISTS " + indexName);
+                if (ddl.contains("gin_trgm_ops")) stmt.execute("CREATE EXTENSION IF NOT EXISTS pg_trgm");
+                try {
+                    stmt.execute(ddl);
+                } catch (SQLException e) {
+                    dropIfInvalid(conn, indexName);
+                    throw e;
+                }
+            }
+            if (!Boolean.TRUE.equals(indexValid(conn, indexName))) {
+                dropIfInvalid(conn, indexName);
+                throw new SQLException("индекс " + indexName + " не построен (INVALID)");
+            }
+            return valid != null ? "пересоздан (был INVALID)" : "создан";
+        }
+
+        /** null — индекса нет; иначе pg_index.indisvalid. */
+        private static Boolean indexValid(Connection conn, String indexName) throws SQLException {
+            String sql = "SELECT i.indisvalid FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid "
+                    + "WHERE c.relname = ? AND pg_catalog.pg_table_is_visible(c.oid)";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, indexName);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getBoolean(1) : null;
+                }
+            }
+        }
+
+        private static void dropIfInvalid(Connection conn, String indexName) {
+            try {
+                if (Boolean.FALSE.equals(indexValid(conn, indexName))) {
+                    try (Statement stmt = conn.createStatement()) {
+                        stmt.execute("DROP INDEX CONCURRENTLY IF EXISTS " + indexName);
                     }
                 }
-                data.put(col.name, val);
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
         }
 
-        private void err(String msg) {
-            JOptionPane.showMessageDialog(this, msg, "Ошибка ввода", JOptionPane.ERROR_MESSAGE);
-            confirmed = false;
+        /** Тот же SQL, что строит loadTableData. */
+        private static String shapeSql(QueryUsage u) {
+            StringBuilder sql = new StringBuilder("SELECT ").append(u.selectList).append(" FROM ").append(u.table);
+            if (!u.filterColumn.isEmpty()) sql.append(" WHERE ").append(u.filterColumn).append("::TEXT ILIKE ?");
+            if (!u.sortColumn.isEmpty()) sql.append(" ORDER BY ").append(u.sortColumn).append(" ").append(u.sortOrder);
+            return sql.toString();
         }
 
-        public boolean isConfirmed() { return confirmed; }
-        public Map<String, Object> getData() { return data; }
-    }
+        private String explain(String sql, String sampleValue) throws SQLException {
+            try (PreparedStatement stmt = conn.prepareStatement("EXPLAIN (FORMAT JSON) " + sql)) {
+                if (sql.contains("?")) stmt.setString(1, "%" + sampleValue + "%");
+                try (ResultSet rs = stmt.executeQuery()) {
+                    StringBuilder sb = new StringBuilder();
+                    while (rs.next()) sb.append(rs.getString(1));
+                    return sb.toString();
+                }
+            }
+        }
 
-    private static class FKItem {
-        final Object id;
-        final String label;
-        FKItem(Object id, String label) {
-            this.id = id;
-            this.label = label;
+        private Double hypotheticalCost(String ddl, String sql, String sampleValue) throws SQLException {
+            String plain = ddl.replace(" CONCURRENTLY IF NOT EXISTS", "");
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT * FROM hypopg_create_index(?)")) {
+                stmt.setString(1, plain);
+                stmt.executeQuery().close();
+            }
+            try {
+                return totalCost(explain(sql, sampleValue));
+            } finally {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("SELECT hypopg_reset()");
+                }
+            }
         }
-        @Override public String toString() {
-            return label;
+
+        private boolean hasExtension(String name) throws SQLException {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM pg_extension WHERE extname = ?")) {
+                stmt.setString(1, name);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next();
+                }
+            }
+        }
+
+        /** Стоимость корневого узла — первое вхождение "Total Cost" в JSON плана. */
+        private static double totalCost(String planJson) {
+            Matcher m = TOTAL_COST.matcher(planJson);
+            return m.find() ? Double.parseDouble(m.group(1)) : 0;
+        }
+
+        private static Set<String> nodeTypes(String planJson) {
+            Set<String> nodes = new LinkedHashSet<>();
+            Matcher m = NODE_TYPE.matcher(planJson);
+            while (m.find()) nodes.add(m.group(1));
+            return nodes;
         }
     }
 
@@ -608,9 +4082,25 @@ public class Hospital {
             showReportDialog(sel);
         });
 
+        JButton btnAll = new JButton("Все отчёты");
+        btnAll.addActionListener(e -> showReportsDashboard());
+
+        JButton btnWorkload = new JButton("Нагрузка врачей (онлайн)");
+        btnWorkload.addActionListener(e -> showWorkloadDashboard());
+
         reportPanel.add(lbl);
         reportPanel.add(reportCombo);
         reportPanel.add(btnGen);
+        reportPanel.add(btnAll);
+        reportPanel.add(btnWorkload);
+
+        JButton btnAdvisor = new JButton("Советник индексов");
+        btnAdvisor.addActionListener(e -> showIndexAdvisor());
+        reportPanel.add(btnAdvisor);
+
+        JButton btnDuplicates = new JButton("Дубликаты пациентов");
+        btnDuplicates.addActionListener(e -> showDuplicatePatients());
+        reportPanel.add(btnDuplicates);
         return reportPanel;
     }
 
@@ -665,6 +4155,11 @@ public class Hospital {
     }
 
     private void generateDoctorsCountReport(Map<String, Object> params) {
+        QueryScope scope = new QueryScope();
+        showReportWhenReady("Отчёт: Врачи по отделениям", buildDoctorsCountReport(params, scope), scope);
+    }
+
+    CompletableFuture<ReportResult> buildDoctorsCountReport(Map<String, Object> params, QueryScope scope) {
         String hospital = (String) params.get("hospital");
         String sortBy = (String) params.get("sortBy");
 
@@ -711,59 +4206,58 @@ public class Hospital {
             WHERE h.name ILIKE ?
             """;
 
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            Vector<String> cols = new Vector<>(List.of("Больница", "Отделение", "Врачей"));
-            Vector<Vector<Object>> rows = new Vector<>();
-
-            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
-                if (!hospital.isEmpty()) stmt.setString(1, "%" + hospital + "%");
-                try (ResultSet rs = stmt.executeQuery()) {
-                    while (rs.next()) {
-                        Vector<Object> r = new Vector<>();
-                        r.add(rs.getString("hospital"));
-                        r.add(rs.getString("department"));
-                        r.add(rs.getInt("doctor_count"));
-                        rows.add(r);
-                    }
-                }
-            }
+        List<Object> args = hospital.isEmpty() ? List.of() : List.of("%" + hospital + "%");
+        ReportResult layout = new ReportResult(
+                new String[]{"Больница", "Отделение", "Врачей"},
+                new ColumnType[]{ColumnType.TEXT, ColumnType.TEXT, ColumnType.INTEGER});
 
-            // Добавляем подитоги
-            try (PreparedStatement stmt = conn.prepareStatement(totalSql)) {
-                if (!hospital.isEmpty()) stmt.setString(1, "%" + hospital + "%");
-                try (ResultSet rs = stmt.executeQuery()) {
-                    while (rs.next()) {
-                        Vector<Object> r = new Vector<>();
-                        r.add("→ ИТОГО по " + rs.getString("hospital"));
-                        r.add("");
-                        r.add(rs.getInt("total"));
-                        r.set(0, "<html><b>" + r.get(0) + "</b></html>");
-                        rows.add(r);
-                    }
-                }
+        // В режиме шардов каждый запрос выполняется во всех шардах параллельно (scatter-gather):
+        // отделения и врачи больницы лежат в одном шарде, поэтому строки деталей не пересекаются
+        List<ConnectionPool> targets = shards.forRead("doctors");
+        boolean byCount = "по количеству врачей".equals(sortBy);
+        CompletableFuture<ReportResult> details = scope.queryAll(targets, sql.toString(), args, rs -> {
+            ReportResult part = layout.emptyCopy();
+            while (rs.next()) {
+                int r = part.addRow(RowKind.DETAIL);
+                part.text(r, 0, rs.getString("hospital"))
+                    .text(r, 1, rs.getString("department"))
+                    .number(r, 2, rs.getLong("doctor_count"));
             }
+            return part;
+        }).thenApply(parts -> mergeShardReports(parts, all -> {
+            Comparator<Integer> byHospital = (a, b) -> RU_COLLATOR.compare(all.text(a, 0), all.text(b, 0));
+            Comparator<Integer> byName = byHospital.thenComparing((a, b) -> RU_COLLATOR.compare(all.text(a, 1), all.text(b, 1)));
+            return byCount ? Comparator.<Integer>comparingLong(r -> -all.number(r, 2)).thenComparing(byName) : byName;
+        }));
 
-            // Глобальный итог
-            int grandTotal;
-            try (PreparedStatement stmt = conn.prepareStatement(grandTotalSql)) {
-                if (!hospital.isEmpty()) stmt.setString(1, "%" + hospital + "%");
-                try (ResultSet rs = stmt.executeQuery()) {
-                    rs.next();
-                    grandTotal = rs.getInt("cnt");
-                }
+        // Подитоги по больницам: таблица hospitals есть в каждом шарде, части складываются по больнице
+        CompletableFuture<ReportResult> subtotals = scope.queryAll(targets, totalSql, args, rs -> {
+            Map<String, Long> totals = new LinkedHashMap<>();
+            while (rs.next()) totals.put(rs.getString("hospital"), rs.getLong("total"));
+            return totals;
+        }).thenApply(parts -> {
+            Map<String, Long> merged = new LinkedHashMap<>();
+            for (Map<String, Long> part : parts) part.forEach((h, n) -> merged.merge(h, n, Long::sum));
+            ReportResult part = layout.emptyCopy();
+            for (Map.Entry<String, Long> total : merged.entrySet()) {
+                int r = part.addRow(RowKind.SUBTOTAL);
+                part.text(r, 0, "→ ИТОГО по " + total.getKey())
+                    .number(r, 2, total.getValue());
             }
+            return part;
+        });
 
-            Vector<Object> r = new Vector<>();
-            r.add("<html><b>→ ОБЩИЙ ИТОГ</b></html>");
-            r.add("");
-            r.add(grandTotal);
-            rows.add(r);
+        // Глобальный итог — сумма по шардам
+        CompletableFuture<Long> grandTotal = scope.queryAll(targets, grandTotalSql, args, rs -> {
+            rs.next();
+            return rs.getLong("cnt");
+        }).thenApply(parts -> parts.stream().mapToLong(Long::longValue).sum());
 
-            showReportInDialog("Отчёт: Врачи по отделениям", cols, rows);
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-            JOptionPane.showMessageDialog(frame, "Ошибка генерации отчёта:\n" + ex.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
-        }
+        return details.thenCombine(subtotals, ReportResult::appendAll).thenCombine(grandTotal, (report, total) -> {
+            int r = report.addRow(RowKind.TOTAL);
+            report.text(r, 0, "→ ОБЩИЙ ИТОГ").number(r, 2, total);
+            return report;
+        });
     }
 
     // ——— 2. Отчёт: Приёмы по врачам ———
@@ -823,20 +4317,30 @@ public class Hospital {
     }
 
     private void generateAppointmentsByDoctorReport(Map<String, Object> params) {
+        QueryScope scope = new QueryScope();
+        showReportWhenReady("Отчёт: Приёмы по врачам", buildAppointmentsByDoctorReport(params, scope), scope);
+    }
+
+    CompletableFuture<ReportResult> buildAppointmentsByDoctorReport(Map<String, Object> params, QueryScope scope) {
         String status = (String) params.get("status");
         String from = (String) params.get("from");
         String to = (String) params.get("to");
         String sortBy = (String) params.get("sortBy");
 
+        // Условия на приём стоят в ON, а не в WHERE: иначе LEFT JOIN превращается во внутренний
+        // и врачи без приёмов пропадают. Все колонки appointments есть в idx_appointments_doctor_start
+        // (ключ doctor_id, appointment_start + INCLUDE status, duration_minutes) — Index Only Scan;
+        // поэтому считаем COUNT(a.doctor_id), а не appointment_id. Минуты округляются после AVG/SUM.
         StringBuilder sql = new StringBuilder("""
             SELECT
                 d.surname || ' ' || d.name || ' ' || COALESCE(d.patronymic || '.', '') AS doctor,
-                COUNT(a.appointment_id) AS appointment_count,
-                AVG(EXTRACT(EPOCH FROM (a.appointment_end - a.appointment_start)) / 60)::int AS avg_duration_min,
-                SUM(EXTRACT(EPOCH FROM (a.appointment_end - a.appointment_start)) / 60)::int AS total_minutes
+                COUNT(a.doctor_id) AS appointment_count,
+                COALESCE(AVG(a.duration_minutes), 0)::int AS avg_duration_min,
+                COALESCE(SUM(a.duration_minutes), 0)::int AS total_minutes,
+                COALESCE(SUM(a.duration_minutes), 0) AS total_minutes_exact
             FROM doctors d
             LEFT JOIN appointments a ON d.doctor_id = a.doctor_id
-            WHERE a.appointment_start >= ?::timestamptz
+              AND a.appointment_start >= ?::timestamptz
               AND a.appointment_start <  ?::timestamptz + INTERVAL '1 day'
             """);
         if (status != null) {
@@ -852,61 +4356,42 @@ public class Hospital {
             default -> sql.append(" ORDER BY d.surname, d.name ");
         }
 
-        String summarySql = """
-            SELECT
-                COUNT(a.appointment_id) AS total_appointments,
-                SUM(EXTRACT(EPOCH FROM (a.appointment_end - a.appointment_start)) / 60)::int AS total_minutes_all
-            FROM appointments a
-            WHERE a.appointment_start >= ?::timestamptz
-              AND a.appointment_start <  ?::timestamptz + INTERVAL '1 day'
-            """;
-        if (status != null) summarySql += " AND a.status = ? ";
-
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            Vector<String> cols = new Vector<>(List.of("Врач", "Приёмов", "Ср.длит., мин", "Всего, мин"));
-            Vector<Vector<Object>> rows = new Vector<>();
-
-            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
-                stmt.setString(1, from);
-                stmt.setString(2, to);
-                int idx = 3;
-                if (status != null) stmt.setString(idx++, status);
-
-                try (ResultSet rs = stmt.executeQuery()) {
-                    while (rs.next()) {
-                        Vector<Object> r = new Vector<>();
-                        r.add(rs.getString("doctor"));
-                        r.add(rs.getInt("appointment_count"));
-                        r.add(rs.getInt("avg_duration_min"));
-                        r.add(rs.getInt("total_minutes"));
-                        rows.add(r);
-                    }
-                }
-            }
+        List<Object> args = new ArrayList<>(List.of(from, to));
+        if (status != null) args.add(status);
+        ReportResult layout = new ReportResult(
+                new String[]{"Врач", "Приёмов", "Ср.длит., мин", "Всего, мин"},
+                new ColumnType[]{ColumnType.TEXT, ColumnType.INTEGER, ColumnType.INTEGER, ColumnType.INTEGER});
 
-            // Итоговая строка
-            try (PreparedStatement stmt = conn.prepareStatement(summarySql)) {
-                stmt.setString(1, from);
-                stmt.setString(2, to);
-                int idx = 3;
-                if (status != null) stmt.setString(idx++, status);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        Vector<Object> r = new Vector<>();
-                        r.add("<html><b>→ ИТОГО</b></html>");
-                        r.add(rs.getInt("total_appointments"));
-                        r.add(""); // среднее не имеет смысла в итоге — оставим пустым
-                        r.add(rs.getInt("total_minutes_all"));
-                        rows.add(r);
-                    }
-                }
+        // Врачи и их приёмы лежат в шарде своей больницы — части по шардам не пересекаются
+        DoubleAdder totalMinutes = new DoubleAdder();
+        CompletableFuture<ReportResult> details = scope.queryAll(shards.forRead("appointments"), sql.toString(), args, rs -> {
+            ReportResult part = layout.emptyCopy();
+            while (rs.next()) {
+                totalMinutes.add(rs.getDouble("total_minutes_exact"));
+                int r = part.addRow(RowKind.DETAIL);
+                part.text(r, 0, rs.getString("doctor"))
+                    .number(r, 1, rs.getLong("appointment_count"))
+                    .number(r, 2, rs.getLong("avg_duration_min"))
+                    .number(r, 3, rs.getLong("total_minutes"));
             }
+            return part;
+        }).thenApply(parts -> mergeShardReports(parts, all -> switch (sortBy) {
+            case "по количеству приёмов" -> Comparator.comparingLong(r -> -all.number(r, 1));
+            case "по средней длительности" -> Comparator.comparingLong(r -> -all.number(r, 2));
+            default -> (a, b) -> RU_COLLATOR.compare(all.text(a, 0), all.text(b, 0));
+        }));
 
-            showReportInDialog("Отчёт: Приёмы по врачам", cols, rows);
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-            JOptionPane.showMessageDialog(frame, "Ошибка генерации отчёта:\n" + ex.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
-        }
+        // Итоговая строка — сумма по врачам: у каждого приёма ровно один врач, отдельный запрос не нужен
+        return details.thenApply(report -> {
+            long appointments = 0;
+            for (int r = 0; r < report.rowCount(); r++) appointments += report.number(r, 1);
+            // итог округляется от точной суммы, а не складывается из округлённых строк
+            long minutes = Math.round(totalMinutes.sum());
+            // среднее не имеет смысла в итоге — ячейка остаётся пустой
+            int r = report.addRow(RowKind.TOTAL);
+            report.text(r, 0, "→ ИТОГО").number(r, 1, appointments).number(r, 3, minutes);
+            return report;
+        });
     }
 
     // ——— 3. Отчёт: Демография пациентов ———
@@ -938,6 +4423,11 @@ public class Hospital {
     }
 
     private void generatePatientDemographicsReport(String gender) {
+        QueryScope scope = new QueryScope();
+        showReportWhenReady("Отчёт: Демография пациентов", buildPatientDemographicsReport(gender, scope), scope);
+    }
+
+    CompletableFuture<ReportResult> buildPatientDemographicsReport(String gender, QueryScope scope) {
         // Вычисляем возрастные группы прямо в SQL
         String baseSql = """
             SELECT
@@ -957,71 +4447,129 @@ public class Hospital {
         String totalSql = "SELECT COUNT(*) AS total FROM patients";
         if (gender != null) totalSql += " WHERE gender = ? ";
 
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            int total;
-            try (PreparedStatement stmt = conn.prepareStatement(totalSql)) {
-                if (gender != null) stmt.setString(1, gender);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    rs.next();
-                    total = rs.getInt("total");
-                }
+        List<Object> args = gender == null ? List.of() : List.of(gender);
+        ReportResult layout = new ReportResult(
+                new String[]{"Возрастная группа", "Количество", "%"},
+                new ColumnType[]{ColumnType.TEXT, ColumnType.INTEGER, ColumnType.PERCENT});
+
+        CompletableFuture<Long> total = scope.query(totalSql, args, rs -> {
+            rs.next();
+            return rs.getLong("total");
+        });
+
+        CompletableFuture<ReportResult> groups = scope.query(baseSql, args, rs -> {
+            ReportResult part = layout.emptyCopy();
+            while (rs.next()) {
+                int r = part.addRow(RowKind.DETAIL);
+                part.text(r, 0, rs.getString("age_group")).number(r, 1, rs.getLong("cnt"));
             }
+            return part;
+        });
 
-            Vector<String> cols = new Vector<>(List.of("Возрастная группа", "Количество", "%"));
-            Vector<Vector<Object>> rows = new Vector<>();
+        // Доли считаются, когда известны оба результата
+        return groups.thenCombine(total, (report, cnt) -> {
+            for (int r = 0; r < report.rowCount(); r++) {
+                report.percent(r, 2, cnt == 0 ? 0.0 : (report.number(r, 1) * 100.0 / cnt));
+            }
+            int r = report.addRow(RowKind.TOTAL);
+            report.text(r, 0, "→ ИТОГО").number(r, 1, cnt).percent(r, 2, 100.0);
+            return report;
+        });
+    }
 
-            try (PreparedStatement stmt = conn.prepareStatement(baseSql)) {
-                if (gender != null) stmt.setString(1, gender);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    while (rs.next()) {
-                        String group = rs.getString("age_group");
-                        int cnt = rs.getInt("cnt");
-                        double pct = total == 0 ? 0.0 : (cnt * 100.0 / total);
-                        Vector<Object> r = new Vector<>();
-                        r.add(group);
-                        r.add(cnt);
-                        r.add(String.format("%.1f%%", pct));
-                        rows.add(r);
-                    }
+    /** Срок — как у панели «Все отчёты»: по его истечении незавершённые подзапросы scope отменяются. */
+    private void showReportWhenReady(String title, CompletableFuture<ReportResult> report, QueryScope scope) {
+        report.orTimeout(REPORT_DEADLINE_SEC, TimeUnit.SECONDS).whenComplete((result, err) -> {
+            if (err != null) scope.cancelAll();
+            SwingUtilities.invokeLater(() -> {
+                if (err != null) {
+                    Throwable ex = unwrap(err);
+                    ex.printStackTrace();
+                    String msg = ex instanceof TimeoutException
+                            ? "Отчёт не сформирован за " + REPORT_DEADLINE_SEC + " с" : ex.getMessage();
+                    JOptionPane.showMessageDialog(frame, "Ошибка генерации отчёта:\n" + msg, "Ошибка", JOptionPane.ERROR_MESSAGE);
+                    return;
                 }
-            }
+                showReportInDialog(title, result);
+            });
+        });
+    }
 
-            // Итог
-            Vector<Object> r = new Vector<>();
-            r.add("<html><b>→ ИТОГО</b></html>");
-            r.add(total);
-            r.add("100.0%");
-            rows.add(r);
+    // ——— Все отчёты сразу ———
 
-            showReportInDialog("Отчёт: Демография пациентов", cols, rows);
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-            JOptionPane.showMessageDialog(frame, "Ошибка генерации отчёта:\n" + ex.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
+    /** Три отчёта одновременно на соединениях пула; каждая панель появляется, как только готов её отчёт. */
+    private void showReportsDashboard() {
+        JDialog dlg = new JDialog(frame, "Все отчёты", false);
+        dlg.setLayout(new BorderLayout());
+        JPanel panels = new JPanel(new GridLayout(3, 1, 5, 5));
+        JLabel status = new JLabel("Формирование…");
+        long started = System.nanoTime();
+
+        String year = String.valueOf(LocalDate.now().getYear());
+        Map<String, Object> doctorsParams = new HashMap<>();
+        doctorsParams.put("hospital", "");
+        doctorsParams.put("sortBy", "по больнице");
+        Map<String, Object> appointmentParams = new HashMap<>();
+        appointmentParams.put("status", null);
+        appointmentParams.put("from", year + "-01-01");
+        appointmentParams.put("to", year + "-12-31");
+        appointmentParams.put("sortBy", "по ФИО");
+
+        List<QueryScope> scopes = List.of(new QueryScope(), new QueryScope(), new QueryScope());
+        Map<String, CompletableFuture<ReportResult>> parts = new LinkedHashMap<>();
+        parts.put("Врачи по отделениям", buildDoctorsCountReport(doctorsParams, scopes.get(0)));
+        parts.put("Приёмы по врачам за " + year + " год", buildAppointmentsByDoctorReport(appointmentParams, scopes.get(1)));
+        parts.put("Демография пациентов", buildPatientDemographicsReport(null, scopes.get(2)));
+
+        for (Map.Entry<String, CompletableFuture<ReportResult>> part : parts.entrySet()) {
+            JPanel panel = new JPanel(new BorderLayout());
+            panel.setBorder(BorderFactory.createTitledBorder(part.getKey()));
+            panel.add(new JLabel("Загрузка…", SwingConstants.CENTER), BorderLayout.CENTER);
+            panels.add(panel);
+
+            part.getValue().whenComplete((report, err) -> SwingUtilities.invokeLater(() -> {
+                panel.removeAll();
+                if (err != null) {
+                    Throwable ex = unwrap(err);
+                    String msg = ex instanceof CancellationException || ex instanceof SQLException
+                            && scopes.stream().anyMatch(QueryScope::isCancelled) ? "Прервано по сроку" : ex.getMessage();
+                    panel.add(new JLabel("Ошибка: " + msg, SwingConstants.CENTER), BorderLayout.CENTER);
+                } else {
+                    panel.add(new JScrollPane(createReportTable(report)), BorderLayout.CENTER);
+                }
+                panel.revalidate();
+                panel.repaint();
+            }));
         }
+
+        CompletableFuture.allOf(parts.values().toArray(new CompletableFuture<?>[0]))
+                .orTimeout(REPORT_DEADLINE_SEC, TimeUnit.SECONDS)
+                .whenComplete((v, err) -> {
+                    if (err != null) scopes.forEach(QueryScope::cancelAll);
+                    long ms = (System.nanoTime() - started) / 1_000_000;
+                    SwingUtilities.invokeLater(() -> status.setText(
+                            (err == null ? "Готово за " : "Завершено с ошибками за ") + ms + " мс"));
+                });
+
+        JButton closeBtn = new JButton("Закрыть");
+        closeBtn.addActionListener(e -> dlg.dispose());
+        JPanel bottom = new JPanel(new BorderLayout());
+        bottom.add(status, BorderLayout.WEST);
+        bottom.add(closeBtn, BorderLayout.EAST);
+
+        dlg.add(panels, BorderLayout.CENTER);
+        dlg.add(bottom, BorderLayout.SOUTH);
+        dlg.setSize(700, 800);
+        dlg.setLocationRelativeTo(frame);
+        dlg.setVisible(true);
     }
 
     // ——— Общий метод отображения отчёта ———
-    private void showReportInDialog(String title, Vector<String> columnNames, Vector<Vector<Object>> data) {
+    private void showReportInDialog(String title, ReportResult report) {
         JDialog dlg = new JDialog(frame, title, true);
         dlg.setLayout(new BorderLayout());
 
-        DefaultTableModel model = new DefaultTableModel(data, columnNames) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
-        JTable rptTable = new JTable(model);
-        rptTable.setDefaultRenderer(Object.class, new DefaultTableCellRenderer() {
-            @Override
-            public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
-                Component c = super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
-                if (value instanceof String && ((String) value).startsWith("<html>")) {
-                    c.setFont(c.getFont().deriveFont(Font.BOLD));
-                }
-                return c;
-            }
-        });
+        JTable rptTable = createReportTable(report);
         JScrollPane scroll = new JScrollPane(rptTable);
 
         JButton closeBtn = new JButton("Закрыть");
@@ -1036,4 +4584,533 @@ public class Hospital {
         dlg.setLocationRelativeTo(frame);
         dlg.setVisible(true);
     }
+
+    /**
+     * JTable рисует только видимые строки; чтобы это работало и на 100k+ строк,
+     * модель отдаёт ячейки прямо из массивов отчёта, высота строк одинаковая,
+     * а итоговые строки выделяются шрифтом рендерера, а не HTML.
+     */
+    private static JTable createReportTable(ReportResult report) {
+        JTable rptTable = new JTable(new ReportTableModel(report));
+        ReportCellRenderer renderer = new ReportCellRenderer(report);
+        rptTable.setDefaultRenderer(Object.class, renderer);
+        rptTable.setDefaultRenderer(Number.class, renderer);
+        rptTable.setDefaultRenderer(Double.class, renderer);
+        rptTable.setAutoCreateRowSorter(false);
+        return rptTable;
+    }
+
+    // ——— Модель результата отчёта ———
+
+    private enum RowKind { DETAIL, SUBTOTAL, TOTAL }
+
+    private enum ColumnType { TEXT, INTEGER, PERCENT }
+
+    /**
+     * Результат отчёта по колонкам: текст в String[], числа в long[]/double[] без упаковки,
+     * пустые ячейки отмечены в BitSet, у каждой строки — вид (деталь / подытог / итог).
+     */
+    private static class ReportResult {
+        final String[] columnNames;
+        final ColumnType[] columnTypes;
+        private final Object[] columns;
+        private final BitSet[] filled;
+        private byte[] kinds = new byte[64];
+        private int rowCount;
+
+        ReportResult(String[] columnNames, ColumnType[] columnTypes) {
+            this.columnNames = columnNames;
+            this.columnTypes = columnTypes;
+            this.columns = new Object[columnTypes.length];
+            this.filled = new BitSet[columnTypes.length];
+            for (int c = 0; c < columnTypes.length; c++) {
+                columns[c] = switch (columnTypes[c]) {
+                    case TEXT -> new String[kinds.length];
+                    case INTEGER -> new long[kinds.length];
+                    case PERCENT -> new double[kinds.length];
+                };
+                filled[c] = new BitSet();
+            }
+        }
+
+        int addRow(RowKind kind) {
+            if (rowCount == kinds.length) {
+                int cap = kinds.length * 2;
+                kinds = Arrays.copyOf(kinds, cap);
+                for (int c = 0; c < columns.length; c++) {
+                    columns[c] = switch (columnTypes[c]) {
+                        case TEXT -> Arrays.copyOf((String[]) columns[c], cap);
+                        case INTEGER -> Arrays.copyOf((long[]) columns[c], cap);
+                        case PERCENT -> Arrays.copyOf((double[]) columns[c], cap);
+                    };
+                }
+            }
+            kinds[rowCount] = (byte) kind.ordinal();
+            return rowCount++;
+        }
+
+        ReportResult text(int row, int col, String value) {
+            ((String[]) columns[col])[row] = value;
+            filled[col].set(row);
+            return this;
+        }
+
+        ReportResult number(int row, int col, long value) {
+            ((long[]) columns[col])[row] = value;
+            filled[col].set(row);
+            return this;
+        }
+
+        ReportResult percent(int row, int col, double value) {
+            ((double[]) columns[col])[row] = value;
+            filled[col].set(row);
+            return this;
+        }
+
+        ReportResult emptyCopy() {
+            return new ReportResult(columnNames, columnTypes);
+        }
+
+        /** Дописывает строки other (те же колонки) в конец; возвращает this. */
+        ReportResult appendAll(ReportResult other) {
+            for (int src = 0; src < other.rowCount; src++) appendRow(other, src);
+            return this;
+        }
+
+        /** Копия со строками, переставленными по order (сравниваются номера строк). */
+        ReportResult sorted(Comparator<Integer> order) {
+            Integer[] rows = new Integer[rowCount];
+            for (int r = 0; r < rowCount; r++) rows[r] = r;
+            Arrays.sort(rows, order);
+            ReportResult copy = emptyCopy();
+            for (int r : rows) copy.appendRow(this, r);
+            return copy;
+        }
+
+        void appendRow(ReportResult other, int src) {
+            int dst = addRow(other.kind(src));
+            for (int c = 0; c < columns.length; c++) {
+                if (other.isEmpty(src, c)) continue;
+                switch (columnTypes[c]) {
+                    case TEXT -> text(dst, c, other.text(src, c));
+                    case INTEGER -> number(dst, c, other.number(src, c));
+                    case PERCENT -> percent(dst, c, other.percent(src, c));
+                }
+            }
+        }
+
+        int rowCount() { return rowCount; }
+        RowKind kind(int row) { return RowKind.values()[kinds[row]]; }
+        boolean isEmpty(int row, int col) { return !filled[col].get(row); }
+        String text(int row, int col) { return ((String[]) columns[col])[row]; }
+        long number(int row, int col) { return ((long[]) columns[col])[row]; }
+        double percent(int row, int col) { return ((double[]) columns[col])[row]; }
+    }
+
+    private static class ReportTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+
+        private ReportResult report;
+        ReportTableModel(ReportResult report) { this.report = report; }
+
+        /** Новые строки с теми же колонками: структура таблицы (и ширина колонок) не сбрасывается. */
+        void setReport(ReportResult report) {
+            int oldRows = this.report.rowCount();
+            this.report = report;
+            if (oldRows != report.rowCount()) fireTableDataChanged();
+            else if (oldRows > 0) fireTableRowsUpdated(0, oldRows - 1);
+        }
+
+        @Override public int getRowCount() { return report.rowCount(); }
+        @Override public int getColumnCount() { return report.columnNames.length; }
+        @Override public String getColumnName(int column) { return report.columnNames[column]; }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return switch (report.columnTypes[column]) {
+                case TEXT -> String.class;
+                case INTEGER -> Long.class;
+                case PERCENT -> Double.class;
+            };
+        }
+
+        /** Упаковка только для запрошенной (видимой) ячейки. */
+        @Override
+        public Object getValueAt(int row, int column) {
+            if (report.isEmpty(row, column)) return null;
+            return switch (report.columnTypes[column]) {
+                case TEXT -> report.text(row, column);
+                case INTEGER -> report.number(row, column);
+                case PERCENT -> report.percent(row, column);
+            };
+        }
+    }
+
+    /** Форматирует числа по типу колонки, подытоги и итоги — жирным. */
+    private static class ReportCellRenderer extends DefaultTableCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        private ReportResult report;
+        private final NumberFormat integerFormat = NumberFormat.getIntegerInstance();
+        private Font plainFont, boldFont;
+
+        ReportCellRenderer(ReportResult report) { this.report = report; }
+
+        void setReport(ReportResult report) { this.report = report; }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
+            super.getTableCellRendererComponent(table, null, isSelected, hasFocus, row, column);
+            if (plainFont == null || !plainFont.equals(table.getFont())) {
+                plainFont = table.getFont();
+                boldFont = plainFont.deriveFont(Font.BOLD);
+            }
+            int r = table.convertRowIndexToModel(row);
+            int c = table.convertColumnIndexToModel(column);
+            setFont(report.kind(r) == RowKind.DETAIL ? plainFont : boldFont);
+
+            ColumnType type = report.columnTypes[c];
+            setHorizontalAlignment(type == ColumnType.TEXT ? LEFT : RIGHT);
+            if (report.isEmpty(r, c)) {
+                setText("");
+            } else {
+                setText(switch (type) {
+                    case TEXT -> report.text(r, c);
+                    case INTEGER -> integerFormat.format(report.number(r, c));
+                    case PERCENT -> String.format("%.1f%%", report.percent(r, c));
+                });
+            }
+            return this;
+        }
+    }
+
+    // ————————————————————————————————————————————————
+    // Онлайн-панель нагрузки врачей
+    // ————————————————————————————————————————————————
+
+    // Рабочий день врача в минутах — от него считается свободная ёмкость
+    private static final int WORKDAY_MINUTES = Integer.getInteger("hospital.workdayMinutes", 480);
+    private static final int WORKLOAD_REFRESH_MS = 3000;
+    private static final String[] APPOINTMENT_STATUSES = {"scheduled", "completed", "cancelled"};
+
+    /**
+     * Агрегаты за сегодня хранятся в памяти: один запрос при открытии, дальше —
+     * только уведомления appointment_changes (триггеры trg_notify_appointment_*).
+     * Таблица перерисовывается из памяти каждые несколько секунд без обращений к БД.
+     */
+    private void showWorkloadDashboard() {
+        JDialog dlg = new JDialog(frame, "Нагрузка врачей сегодня", false);
+        dlg.setLayout(new BorderLayout());
+
+        JTable wlTable = createReportTable(WorkloadAggregates.emptyReport());
+        JLabel status = new JLabel("Загрузка…");
+
+        // Врачи и приёмы разнесены по шардам больниц: у каждого шарда своё соединение LISTEN и свой снимок
+        List<WorkloadFeed> feeds = new ArrayList<>();
+        List<Thread> feedThreads = new ArrayList<>();
+        for (ConnectionPool shard : shards.forRead("appointments")) {
+            WorkloadFeed feed = new WorkloadFeed(shard);
+            Thread feedThread = new Thread(feed, "workload-feed");
+            feedThread.setDaemon(true);
+            feedThread.start();
+            feeds.add(feed);
+            feedThreads.add(feedThread);
+        }
+
+        // Модель и отрисовщик обновляются на месте: выделение и ширина колонок сохраняются
+        ReportTableModel wlModel = (ReportTableModel) wlTable.getModel();
+        ReportCellRenderer wlRenderer = (ReportCellRenderer) wlTable.getDefaultRenderer(Object.class);
+        Timer timer = new Timer(WORKLOAD_REFRESH_MS, e -> {
+            List<WorkloadAggregates> parts = new ArrayList<>();
+            String error = null;
+            long updatedAt = Long.MAX_VALUE;
+            boolean live = true;
+            for (WorkloadFeed feed : feeds) {
+                if (feed.aggregates != null) parts.add(feed.aggregates);
+                if (feed.error != null) error = feed.error;
+                updatedAt = Math.min(updatedAt, feed.updatedAt);
+                live &= feed.live;
+            }
+            // Пока не загружены все шарды, таблица не показывает часть больниц как целое
+            boolean loaded = parts.size() == feeds.size();
+            if (loaded) {
+                ReportResult snapshot = WorkloadAggregates.snapshot(parts);
+                int selected = wlTable.getSelectedRow();
+                wlRenderer.setReport(snapshot);
+                wlModel.setReport(snapshot);
+                if (selected >= 0 && selected < snapshot.rowCount() && wlTable.getSelectedRow() < 0) {
+                    wlTable.setRowSelectionInterval(selected, selected);
+                }
+            }
+            String asOf = updatedAt == 0 ? "" : LocalTime.ofInstant(
+                    Instant.ofEpochMilli(updatedAt), ZoneId.systemDefault()).withNano(0).toString();
+            if (error != null) {
+                status.setText("Нет связи с БД: " + error + " — переподключение…" + (asOf.isEmpty() ? "" : " Данные на " + asOf));
+            } else if (loaded) {
+                status.setText("Обновлено: " + asOf + (live ? "" : " (без уведомлений — периодическая пересборка)"));
+            }
+        });
+        timer.setInitialDelay(300);
+        timer.start();
+
+        dlg.addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosed(java.awt.event.WindowEvent e) {
+                timer.stop();
+                feeds.forEach(WorkloadFeed::stop);
+                feedThreads.forEach(Thread::interrupt);
+            }
+        });
+
+        JButton closeBtn = new JButton("Закрыть");
+        closeBtn.addActionListener(e -> dlg.dispose());
+        JPanel p = new JPanel(new BorderLayout());
+        p.add(status, BorderLayout.WEST);
+        p.add(closeBtn, BorderLayout.EAST);
+
+        dlg.add(new JScrollPane(wlTable), BorderLayout.CENTER);
+        dlg.add(p, BorderLayout.SOUTH);
+        dlg.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        dlg.setSize(800, 450);
+        dlg.setLocationRelativeTo(frame);
+        dlg.setVisible(true);
+    }
+
+    /**
+     * Своё соединение: LISTEN, снимок за сегодня, затем уведомления (PGConnection.getNotifications —
+     * через рефлексию; без pgjdbc снимок пересобирается раз в минуту). После обрыва — переподключение
+     * с растущей паузой и новый снимок.
+     */
+    private static class WorkloadFeed implements Runnable {
+        private static final long FALLBACK_RESEED_MS = 60_000;
+        private static final long MAX_RECONNECT_MS = 30_000;
+
+        // Отдельное от пула соединение к той же базе (в режиме шардов — к одному из шардов)
+        private final ConnectionPool source;
+        volatile WorkloadAggregates aggregates;
+        volatile boolean live = true;
+        volatile String error;      // последняя ошибка соединения; null — связь есть
+        volatile long updatedAt;    // когда агрегаты последний раз были согласованы с БД
+        private volatile boolean running = true;
+
+        WorkloadFeed(ConnectionPool source) { this.source = source; }
+
+        void stop() { running = false; }
+
+        @Override
+        public void run() {
+            long reconnectMs = 1000;
+            while (running) {
+                long seen = updatedAt;
+                try (Connection conn = source.connect()) {
+                    follow(conn);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    if (!running) return;
+                    Throwable cause = e instanceof InvocationTargetException && e.getCause() != null ? e.getCause() : e;
+                    if (error == null) cause.printStackTrace(); // одна трассировка на обрыв, не на каждую попытку
+                    error = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+                    if (updatedAt != seen) reconnectMs = 1000; // связь была — начинаем с короткой паузы
+                    try {
+                        Thread.sleep(reconnectMs);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    reconnectMs = Math.min(reconnectMs * 2, MAX_RECONNECT_MS);
+                }
+            }
+        }
+
+        private void follow(Connection conn) throws Exception {
+            Object pg = null;
+            Method getNotifications = null, getParameter = null;
+            live = true;
+            try {
+                Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+                pg = conn.unwrap(pgConnection);
+                getNotifications = pgConnection.getMethod("getNotifications", int.class);
+                getParameter = Class.forName("org.postgresql.PGNotification").getMethod("getParameter");
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("LISTEN appointment_changes");
+                }
+            } catch (ReflectiveOperationException | SQLException e) {
+                live = false;
+            }
+
+            // Снимок берётся после LISTEN: изменения, пришедшие позже, не потеряются
+            aggregates = WorkloadAggregates.load(conn, LocalDate.now());
+            long lastSeed = updatedAt = System.currentTimeMillis();
+            error = null;
+
+            while (running) {
+                if (!aggregates.day.equals(LocalDate.now())
+                        || (!live && System.currentTimeMillis() - lastSeed > FALLBACK_RESEED_MS)) {
+                    aggregates = WorkloadAggregates.load(conn, LocalDate.now());
+                    lastSeed = updatedAt = System.currentTimeMillis();
+                }
+                if (!live) {
+                    Thread.sleep(WORKLOAD_REFRESH_MS);
+                    continue;
+                }
+                Object[] notes = (Object[]) getNotifications.invoke(pg, WORKLOAD_REFRESH_MS);
+                boolean reseed = false;
+                if (notes != null) {
+                    for (Object n : notes) reseed |= !aggregates.applyNotification((String) getParameter.invoke(n));
+                }
+                if (reseed) aggregates = WorkloadAggregates.load(conn, LocalDate.now());
+                updatedAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private static class DoctorWorkload {
+        final int departmentId;
+        final String department, doctor;
+        final int[] byStatus = new int[APPOINTMENT_STATUSES.length];
+        double bookedMinutes;
+        DoctorWorkload(int departmentId, String department, String doctor) {
+            this.departmentId = departmentId; this.department = department; this.doctor = doctor;
+        }
+        DoctorWorkload copy() {
+            DoctorWorkload c = new DoctorWorkload(departmentId, department, doctor);
+            System.arraycopy(byStatus, 0, c.byStatus, 0, byStatus.length);
+            c.bookedMinutes = bookedMinutes;
+            return c;
+        }
+    }
+
+    private static class WorkloadAggregates {
+        final LocalDate day;
+        private final long dayStart, dayEnd; // секунды epoch, локальная зона клиента
+        private final Map<Integer, DoctorWorkload> doctors = new LinkedHashMap<>();
+
+        private WorkloadAggregates(LocalDate day) {
+            this.day = day;
+            ZoneId zone = ZoneId.systemDefault();
+            this.dayStart = day.atStartOfDay(zone).toEpochSecond();
+            this.dayEnd = day.plusDays(1).atStartOfDay(zone).toEpochSecond();
+        }
+
+        static WorkloadAggregates load(Connection conn, LocalDate day) throws SQLException {
+            WorkloadAggregates agg = new WorkloadAggregates(day);
+            String sql = """
+                SELECT
+                    d.doctor_id,
+                    dep.department_id,
+                    dep.name || ' (' || h.name || ')' AS department,
+                    d.surname || ' ' || d.name || ' ' || COALESCE(d.patronymic || '.', '') AS doctor,
+                    COUNT(a.doctor_id) FILTER (WHERE a.status = 'scheduled') AS scheduled,
+                    COUNT(a.doctor_id) FILTER (WHERE a.status = 'completed') AS completed,
+                    COUNT(a.doctor_id) FILTER (WHERE a.status = 'cancelled') AS cancelled,
+                    COALESCE(SUM(a.duration_minutes) FILTER (WHERE a.status <> 'cancelled'), 0) AS booked_minutes
+                FROM doctors d
+                JOIN departments dep ON dep.department_id = d.department_id
+                JOIN hospitals h ON h.hospital_id = dep.hospital_id
+                LEFT JOIN appointments a ON a.doctor_id = d.doctor_id
+                    AND a.appointment_start >= ? AND a.appointment_start < ?
+                GROUP BY d.doctor_id, dep.department_id, h.name
+                ORDER BY department, dep.department_id, doctor
+                """;
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setTimestamp(1, new Timestamp(agg.dayStart * 1000));
+                stmt.setTimestamp(2, new Timestamp(agg.dayEnd * 1000));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        DoctorWorkload w = new DoctorWorkload(rs.getInt("department_id"), rs.getString("department"),
+                                rs.getString("doctor"));
+                        w.byStatus[0] = rs.getInt("scheduled");
+                        w.byStatus[1] = rs.getInt("completed");
+                        w.byStatus[2] = rs.getInt("cancelled");
+                        w.bookedMinutes = rs.getDouble("booked_minutes");
+                        agg.doctors.put(rs.getInt("doctor_id"), w);
+                    }
+                }
+            }
+            return agg;
+        }
+
+        /**
+         * Уведомление notify_appointment_change: "метка#элемент;элемент…", элемент —
+         * doctor_id,начало (epoch),статус,±приёмов,±минут. false — пришло '*' (изменений
+         * слишком много для уведомлений), снимок нужно пересобрать.
+         */
+        synchronized boolean applyNotification(String payload) {
+            if (payload.equals("*")) return false;
+            for (String entry : payload.substring(payload.indexOf('#') + 1).split(";")) {
+                String[] f = entry.split(",");
+                long start = Long.parseLong(f[1]);
+                if (start < dayStart || start >= dayEnd) continue;
+                DoctorWorkload w = doctors.get(Integer.parseInt(f[0]));
+                if (w == null) continue; // врач добавлен после снимка — появится при следующей пересборке
+                int s = Arrays.asList(APPOINTMENT_STATUSES).indexOf(f[2]);
+                if (s < 0) continue;
+                w.byStatus[s] += Integer.parseInt(f[3]);
+                // Та же duration_minutes, что суммирует снимок, — иначе итоги расходятся с пересборкой
+                if (s != 2) w.bookedMinutes += Double.parseDouble(f[4]);
+            }
+            return true;
+        }
+
+        static ReportResult emptyReport() {
+            ColumnType[] types = new ColumnType[7];
+            Arrays.fill(types, ColumnType.INTEGER);
+            types[0] = types[1] = ColumnType.TEXT;
+            return new ReportResult(new String[]{"Отделение", "Врач", "Запланировано", "Проведено", "Отменено",
+                    "Занято, мин", "Свободно, мин"}, types);
+        }
+
+        /**
+         * Строки для таблицы по снимкам всех шардов: врачи, после каждого отделения — его итог.
+         * Один снимок — в порядке ORDER BY из SQL; несколько — сортируются так же, по русской локали.
+         */
+        static ReportResult snapshot(List<WorkloadAggregates> parts) {
+            List<DoctorWorkload> doctors = new ArrayList<>();
+            for (WorkloadAggregates part : parts) {
+                synchronized (part) {
+                    for (DoctorWorkload w : part.doctors.values()) doctors.add(w.copy());
+                }
+            }
+            if (parts.size() > 1) {
+                doctors.sort(Comparator.<DoctorWorkload, String>comparing(w -> w.department, RU_COLLATOR)
+                        .thenComparingInt(w -> w.departmentId)
+                        .thenComparing(w -> w.doctor, RU_COLLATOR));
+            }
+            ReportResult report = emptyReport();
+            String dep = null;
+            int depId = 0;
+            long[] depTotals = new long[APPOINTMENT_STATUSES.length + 2];
+            double depMinutes = 0;
+            for (DoctorWorkload w : doctors) {
+                if (dep != null && depId != w.departmentId) {
+                    depTotals[3] = Math.round(depMinutes); // от точной суммы, а не из округлённых строк
+                    addWorkloadRow(report, RowKind.SUBTOTAL, dep, "→ ИТОГО по отделению", depTotals);
+                    depTotals = new long[depTotals.length];
+                    depMinutes = 0;
+                }
+                dep = w.department;
+                depId = w.departmentId;
+                long[] vals = new long[depTotals.length];
+                for (int i = 0; i < w.byStatus.length; i++) vals[i] = w.byStatus[i];
+                vals[3] = Math.round(w.bookedMinutes);
+                vals[4] = Math.max(0, WORKDAY_MINUTES - vals[3]);
+                for (int i = 0; i < vals.length; i++) depTotals[i] += vals[i];
+                depMinutes += w.bookedMinutes;
+                addWorkloadRow(report, RowKind.DETAIL, w.department, w.doctor, vals);
+            }
+            if (dep != null) {
+                depTotals[3] = Math.round(depMinutes);
+                addWorkloadRow(report, RowKind.SUBTOTAL, dep, "→ ИТОГО по отделению", depTotals);
+            }
+            return report;
+        }
+
+        private static void addWorkloadRow(ReportResult report, RowKind kind, String department, String doctor, long[] vals) {
+            int r = report.addRow(kind);
+            report.text(r, 0, department).text(r, 1, doctor);
+            for (int i = 0; i < vals.length; i++) report.number(r, i + 2, vals[i]);
+        }
+    }
 }
\ No newline at end of file
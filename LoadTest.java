@@ -0,0 +1,383 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Нагрузочный тест: N одновременных сеансов регистратуры выполняют смесь операций Hospital
+ * (просмотр таблиц, фильтр, открытие редактора, запись и отмена приёма, отчёты) через тот же
+ * код доступа к данным, что и UI, но без окон. Сеанс — замкнутый цикл: операция, пауза
+ * «на размышление», следующая операция. Итог — пропускная способность и p50/p95/p99 по каждой
+ * операции; с --csv строки дописываются в файл с меткой сборки, чтобы сравнивать сборки.
+ *
+ *   java -cp out:lib/postgresql.jar LoadTest --sessions 50 --duration 60 --label main
+ *
+ * Параметры (по умолчанию):
+ *   --sessions 50       число сеансов
+ *   --duration 60       длительность замера, с
+ *   --warmup 10         прогрев (не учитывается), с
+ *   --think 200         средняя пауза между операциями, мс (экспоненциальная)
+ *   --pool N            размер пула соединений (hospital.poolSize), по умолчанию min(sessions, 32)
+ *   --mix browse=30,filter=20,editor=15,insert=15,cancel=10,report=10   веса операций
+ *   --label local       метка сборки в CSV
+ *   --csv FILE          дописать результаты в CSV
+ *
+ * Сеансы работают на виртуальных потоках, если JVM их умеет (Java 21+); под Java 17 — на пуле
+ * платформенных потоков по одному на сеанс. Какой вариант выбран, печатается в начале и пишется
+ * в CSV (столбец executor) — результаты разных вариантов между собой не сравнивают.
+ * Hospital создаётся без окна: индекс поиска, справочники и прочие службы UI не запускаются,
+ * а записи теста, как и записи из окна, попадают в журнал изменений. Записанные тестом приёмы
+ * в конце удаляются (события отмены в appointment_events остаются — журнал только дополняется).
+ */
+public class LoadTest {
+    private static final String[] BROWSE_TABLES = {"hospitals", "departments", "doctors", "patients", "diagnoses", "appointments"};
+    private static final String[] EDITOR_TABLES = {"doctors", "patients", "appointments"};
+    private static final String[] SURNAME_PREFIXES = {"ив", "пет", "сид", "кузн", "смир", "вол", "ник", "мор"};
+    private static final String[] OPERATIONS = {"browse", "filter", "editor", "insert", "cancel", "report"};
+
+    private final Hospital hospital;
+    private final String[] mix;     // операции, размноженные по весам — случайный выбор с нужным распределением
+    private final long thinkMs;
+
+    // Справочные id для новых приёмов: {doctor_id, department_id, hospital_id} и patient_id
+    private final List<int[]> doctors = new ArrayList<>();
+    private final List<Integer> patients = new ArrayList<>();
+
+    private volatile boolean recording;
+    private volatile boolean stopped;
+
+    private LoadTest(Hospital hospital, String[] mix, long thinkMs) {
+        this.hospital = hospital;
+        this.mix = mix;
+        this.thinkMs = thinkMs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = parseArgs(args);
+        int sessions = Integer.parseInt(opts.getOrDefault("sessions", "50"));
+        int duration = Integer.parseInt(opts.getOrDefault("duration", "60"));
+        int warmup = Integer.parseInt(opts.getOrDefault("warmup", "10"));
+        long think = Long.parseLong(opts.getOrDefault("think", "200"));
+        String label = opts.getOrDefault("label", "local");
+        // Размер пула читается при инициализации класса Hospital — задаём до первого обращения
+        System.setProperty("hospital.poolSize", opts.getOrDefault("pool", String.valueOf(Math.min(sessions, 32))));
+
+        LoadTest test = new LoadTest(new Hospital(true),
+                parseMix(opts.getOrDefault("mix", "browse=30,filter=20,editor=15,insert=15,cancel=10,report=10")), think);
+        test.loadIds();
+
+        ExecutorService executor = virtualThreads();
+        String executorName = executor != null ? "virtual" : "platform";
+        if (executor == null) executor = Executors.newFixedThreadPool(sessions);
+        System.out.printf("Сеансов: %d, прогрев %d с, замер %d с, пауза %d мс, пул %s%n",
+                sessions, warmup, duration, think, System.getProperty("hospital.poolSize"));
+        System.out.printf("Сеансы на %s (Java %d)%n", "virtual".equals(executorName)
+                ? "виртуальных потоках" : "платформенных потоках, по одному на сеанс", Runtime.version().feature());
+        List<Session> all = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) all.add(test.new Session());
+
+        for (Session s : all) executor.execute(s);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        test.recording = true;
+        long started = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        test.recording = false;
+        double elapsedSec = (System.nanoTime() - started) / 1e9;
+        test.stopped = true;
+        executor.shutdown();
+        executor.awaitTermination(2, TimeUnit.MINUTES);
+
+        List<String[]> rows = test.summarize(all, elapsedSec);
+        printTable(rows);
+        if (opts.containsKey("csv")) writeCsv(Paths.get(opts.get("csv")), label, sessions, executorName, rows);
+
+        test.cleanup(all);
+        System.exit(0);
+    }
+
+    /** Виртуальные потоки через отражение (исходники собираются под Java 17); null — JVM их не умеет. */
+    private static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private void loadIds() {
+        try (Hospital.TableData d = hospital.loadTableData("doctors", "", "", "", "ASC")) {
+            int doc = column(d, "doctor_id"), dep = column(d, "department_id"), hosp = column(d, "hospital_id");
+            for (int r = 0; r < d.rows.rowCount(); r++) {
+                Object[] row = d.rows.row(r);
+                doctors.add(new int[]{((Number) row[doc]).intValue(), ((Number) row[dep]).intValue(), ((Number) row[hosp]).intValue()});
+            }
+        }
+        try (Hospital.TableData d = hospital.loadTableData("patients", "", "", "", "ASC")) {
+            int id = column(d, "patient_id");
+            for (int r = 0; r < d.rows.rowCount(); r++) patients.add(((Number) d.rows.row(r)[id]).intValue());
+        }
+        if (doctors.isEmpty() || patients.isEmpty()) {
+            throw new IllegalStateException("Нужны врачи и пациенты в БД (sql/02_create_tables.sql)");
+        }
+    }
+
+    private static int column(Hospital.TableData d, String name) {
+        int i = Arrays.asList(d.columnNames).indexOf(name);
+        if (i < 0) throw new IllegalStateException("Нет столбца " + name);
+        return i;
+    }
+
+    // ————————————————————————————————————————————————
+    // Сеанс
+    // ————————————————————————————————————————————————
+
+    /** Один пользователь: свои замеры (без синхронизации) и свои созданные приёмы. */
+    private class Session implements Runnable {
+        final Map<String, LatencyHistogram> latencies = new HashMap<>();
+        final Map<String, Integer> errors = new HashMap<>();
+        final Map<Object, Map<String, Object>> inserted = new HashMap<>(); // appointment_id → последнее состояние
+        final Deque<Map<String, Object>> scheduled = new ArrayDeque<>();
+
+        @Override
+        public void run() {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            while (!stopped) {
+                String op = mix[rnd.nextInt(mix.length)];
+                boolean measured = recording;
+                long t0 = System.nanoTime();
+                try {
+                    execute(op, rnd);
+                    if (measured) latencies.computeIfAbsent(op, k -> new LatencyHistogram()).record(System.nanoTime() - t0);
+                } catch (Exception e) {
+                    if (measured) errors.merge(op, 1, Integer::sum);
+                }
+                if (thinkMs > 0) {
+                    try {
+                        Thread.sleep((long) (-thinkMs * Math.log(1 - rnd.nextDouble())));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void execute(String op, ThreadLocalRandom rnd) throws SQLException {
+            switch (op) {
+                case "browse" -> {
+                    String t = BROWSE_TABLES[rnd.nextInt(BROWSE_TABLES.length)];
+                    hospital.loadTableData(t, "", "", "", "ASC").close();
+                }
+                case "filter" -> {
+                    String prefix = SURNAME_PREFIXES[rnd.nextInt(SURNAME_PREFIXES.length)];
+                    hospital.loadTableData("patients", "surname", prefix, "surname", "ASC").close();
+                }
+                case "editor" -> {
+                    String t = EDITOR_TABLES[rnd.nextInt(EDITOR_TABLES.length)];
+                    hospital.getTableStructure(t);
+                    hospital.loadEditorItems(t);
+                }
+                case "insert" -> insertAppointment(rnd);
+                case "cancel" -> {
+                    if (scheduled.isEmpty()) insertAppointment(rnd);
+                    Map<String, Object> before = scheduled.poll();
+                    Map<String, Object> change = new LinkedHashMap<>();
+                    change.put("status", "cancelled");
+                    Map<String, Object> after = hospital.updateRecord("appointments", "appointment_id", before, change);
+                    hospital.fireRowChanged("appointments", before, after);
+                    inserted.put(after.get("appointment_id"), after);
+                }
+                case "report" -> runReport(rnd.nextInt(3));
+                default -> throw new IllegalArgumentException(op);
+            }
+        }
+
+        private void insertAppointment(ThreadLocalRandom rnd) throws SQLException {
+            int[] doctor = doctors.get(rnd.nextInt(doctors.size()));
+            long start = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(rnd.nextInt(1, 60));
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("patient_id", patients.get(rnd.nextInt(patients.size())));
+            data.put("doctor_id", doctor[0]);
+            data.put("department_id", doctor[1]);
+            data.put("hospital_id", doctor[2]);
+            data.put("appointment_start", new Timestamp(start));
+            data.put("appointment_end", new Timestamp(start + TimeUnit.MINUTES.toMillis(30)));
+            data.put("status", "scheduled");
+            data.put("notes", "Нагрузочный тест");
+            Map<String, Object> row = hospital.insertRecord("appointments", data);
+            hospital.fireRowChanged("appointments", null, row);
+            inserted.put(row.get("appointment_id"), row);
+            scheduled.add(row);
+        }
+
+        private void runReport(int which) {
+            String year = String.valueOf(LocalDate.now().getYear());
+            Map<String, Object> params = new HashMap<>();
+            switch (which) {
+                case 0 -> {
+                    params.put("hospital", "");
+                    params.put("sortBy", "по больнице");
+                    hospital.buildDoctorsCountReport(params, hospital.new QueryScope()).join();
+                }
+                case 1 -> {
+                    params.put("status", null);
+                    params.put("from", year + "-01-01");
+                    params.put("to", year + "-12-31");
+                    params.put("sortBy", "по ФИО");
+                    hospital.buildAppointmentsByDoctorReport(params, hospital.new QueryScope()).join();
+                }
+                default -> hospital.buildPatientDemographicsReport(null, hospital.new QueryScope()).join();
+            }
+        }
+    }
+
+    // ————————————————————————————————————————————————
+    // Замеры и вывод
+    // ————————————————————————————————————————————————
+
+    /**
+     * Гистограмма задержек с логарифмическими корзинами: 16 корзин на каждую степень двойки
+     * наносекунд — погрешность перцентиля не больше ~4.5%, память не зависит от числа замеров.
+     */
+    private static class LatencyHistogram {
+        private static final int SUB = 16;
+        final long[] counts = new long[64 * SUB];
+        long total, max;
+
+        void record(long nanos) {
+            counts[bucket(Math.max(1, nanos))]++;
+            total++;
+            max = Math.max(max, nanos);
+        }
+
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        private static int bucket(long v) {
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = exp < 4 ? 0 : (int) ((v >>> (exp - 4)) & (SUB - 1));
+            return exp * SUB + sub;
+        }
+
+        /** Верхняя граница корзины, в которую попадает перцентиль p. */
+        long percentile(double p) {
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    int exp = i / SUB, sub = i % SUB;
+                    long upper = exp < 4 ? (2L << exp) - 1 : (1L << exp) + ((long) (sub + 1) << (exp - 4)) - 1;
+                    return Math.min(upper, max);
+                }
+            }
+            return max;
+        }
+    }
+
+    private List<String[]> summarize(List<Session> sessions, double elapsedSec) {
+        List<String[]> rows = new ArrayList<>();
+        LatencyHistogram overall = new LatencyHistogram();
+        int overallErrors = 0;
+        for (String op : OPERATIONS) {
+            LatencyHistogram h = new LatencyHistogram();
+            int err = 0;
+            for (Session s : sessions) {
+                LatencyHistogram sh = s.latencies.get(op);
+                if (sh != null) h.add(sh);
+                err += s.errors.getOrDefault(op, 0);
+            }
+            if (h.total == 0 && err == 0) continue;
+            overall.add(h);
+            overallErrors += err;
+            rows.add(row(op, h, err, elapsedSec));
+        }
+        rows.add(row("all", overall, overallErrors, elapsedSec));
+        return rows;
+    }
+
+    private static String[] row(String op, LatencyHistogram h, int errors, double elapsedSec) {
+        return new String[]{op, String.valueOf(h.total), String.valueOf(errors),
+                String.format(Locale.ROOT, "%.1f", h.total / elapsedSec),
+                ms(h.percentile(0.50)), ms(h.percentile(0.95)), ms(h.percentile(0.99)), ms(h.max)};
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.2f", nanos / 1e6);
+    }
+
+    private static final String[] HEADER = {"op", "count", "errors", "ops_per_sec", "p50_ms", "p95_ms", "p99_ms", "max_ms"};
+
+    private static void printTable(List<String[]> rows) {
+        String fmt = "%-8s %8s %7s %11s %9s %9s %9s %9s%n";
+        System.out.printf(fmt, (Object[]) HEADER);
+        for (String[] r : rows) System.out.printf(fmt, (Object[]) r);
+    }
+
+    private static void writeCsv(Path file, String label, int sessions, String executor,
+                                 List<String[]> rows) throws IOException {
+        boolean fresh = !Files.exists(file);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            if (fresh) out.println("label,timestamp,sessions,executor," + String.join(",", HEADER));
+            String prefix = label + "," + Instant.now() + "," + sessions + "," + executor + ",";
+            for (String[] r : rows) out.println(prefix + String.join(",", r));
+        }
+        System.out.println("Результаты дописаны в " + file);
+    }
+
+    private void cleanup(List<Session> sessions) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Session s : sessions) rows.addAll(s.inserted.values());
+        if (rows.isEmpty()) return;
+        try {
+            hospital.deleteRecords("appointments", "appointment_id", rows);
+            for (Map<String, Object> row : rows) hospital.fireRowChanged("appointments", row, null);
+            System.out.println("Удалено тестовых приёмов: " + rows.size());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // ————————————————————————————————————————————————
+    // Параметры
+    // ————————————————————————————————————————————————
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Ожидается --параметр значение: " + args[i]);
+            }
+            opts.put(args[i].substring(2), args[++i]);
+        }
+        return opts;
+    }
+
+    private static String[] parseMix(String spec) {
+        List<String> ops = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            if (!Arrays.asList(OPERATIONS).contains(kv[0])) {
+                throw new IllegalArgumentException("Неизвестная операция " + kv[0] + "; есть " + Arrays.toString(OPERATIONS));
+            }
+            ops.addAll(Collections.nCopies(Integer.parseInt(kv[1]), kv[0]));
+        }
+        if (ops.isEmpty()) throw new IllegalArgumentException("Пустая смесь операций");
+        return ops.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,47 @@
+#!/bin/sh
+# Сборка клиента с архивом AppCDS и замер времени холодного старта.
+#
+#   scripts/appcds.sh build     — компиляция, hospital.jar и обучающий прогон -> hospital.jsa
+#   scripts/appcds.sh run       — запуск с архивом
+#   scripts/appcds.sh measure N — N запусков без архива и с архивом, строки [startup] из лога
+#
+# Драйвер PostgreSQL: переменная PGJDBC (по умолчанию lib/postgresql.jar).
+# AppCDS работает только с JAR в classpath, поэтому классы упаковываются в hospital.jar.
+set -e
+cd "$(dirname "$0")/.."
+
+PGJDBC=${PGJDBC:-lib/postgresql.jar}
+CP="hospital.jar:$PGJDBC"
+
+build() {
+    rm -rf out && mkdir -p out
+    javac -encoding UTF-8 -d out *.java
+    jar --create --file hospital.jar --main-class Hospital -C out .
+    # Обучающий прогон: процесс сам завершается после первой загрузки таблицы,
+    # JVM сбрасывает в архив все загруженные классы (Swing, JDBC, приложение).
+    java -XX:ArchiveClassesAtExit=hospital.jsa -Dhospital.exitAfterStartup=true -cp "$CP" Hospital
+}
+
+run() {
+    exec java -XX:SharedArchiveFile=hospital.jsa -cp "$CP" Hospital
+}
+
+measure() {
+    n=${1:-5}
+    for mode in plain cds; do
+        opts=""
+        [ "$mode" = cds ] && opts="-XX:SharedArchiveFile=hospital.jsa"
+        i=1
+        while [ "$i" -le "$n" ]; do
+            java $opts -Dhospital.exitAfterStartup=true -cp "$CP" Hospital | grep '^\[startup\]' | sed "s/^/$mode #$i /"
+            i=$((i + 1))
+        done
+    done
+}
+
+case "$1" in
+    build) build ;;
+    run) run ;;
+    measure) measure "$2" ;;
+    *) echo "usage: $0 build|run|measure [N]" >&2; exit 1 ;;
+esac
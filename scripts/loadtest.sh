@@ -0,0 +1,14 @@
+#!/bin/sh
+# Нагрузочный тест против локальной БД (параметры — см. комментарий в LoadTest.java).
+#
+#   scripts/loadtest.sh --sessions 100 --duration 120 --label my-branch --csv loadtest.csv
+#
+# Драйвер PostgreSQL: переменная PGJDBC (по умолчанию lib/postgresql.jar).
+set -e
+cd "$(dirname "$0")/.."
+
+PGJDBC=${PGJDBC:-lib/postgresql.jar}
+
+rm -rf out && mkdir -p out
+javac -encoding UTF-8 -d out *.java
+exec java -cp "out:$PGJDBC" LoadTest "$@"
@@ -0,0 +1,32 @@
+#!/bin/sh
+# Локальные базы-шарды для проверки режима шардирования.
+#
+#   scripts/shards.sh 1 2        — hospital_shard1 с больницей 1, hospital_shard2 с больницей 2
+#   scripts/shards.sh 1,2 3      — hospital_shard1 с больницами 1 и 2, hospital_shard2 с больницей 3
+#
+# Каждая база пересоздаётся: 02_create_tables.sql, затем 03_shards.sql. Итоговая конфигурация
+# пишется в shards.local.properties; запуск: java -Dhospital.shards=shards.local.properties ...
+# Подключение psql — через обычные PGHOST/PGUSER/PGPASSWORD. Collation баз — SHARD_LOCALE
+# (по умолчанию ru_RU.UTF-8): клиент сливает отсортированные части шардов по русской локали,
+# и порядок ORDER BY в шардах должен с ней совпадать.
+set -e
+cd "$(dirname "$0")/.."
+
+[ $# -gt 0 ] || { sed -n '2,11p' "$0"; exit 1; }
+
+CONF=shards.local.properties
+: > "$CONF"
+n=1
+for hospitals in "$@"; do
+    db=hospital_shard$n
+    dropdb --if-exists "$db"
+    createdb --template=template0 --encoding=UTF8 --locale="${SHARD_LOCALE:-ru_RU.UTF-8}" "$db"
+    psql -q -v ON_ERROR_STOP=1 -d "$db" -f sql/02_create_tables.sql
+    psql -q -v ON_ERROR_STOP=1 -d "$db" -v shard="$n" -v hospitals="{$hospitals}" -f sql/03_shards.sql
+    {
+        echo "shard.$n.url=jdbc:postgresql://localhost:5432/$db"
+        echo "shard.$n.hospitals=$hospitals"
+    } >> "$CONF"
+    n=$((n + 1))
+done
+echo "Готово: $CONF"
@@ -0,0 +1,20 @@
+#!/bin/sh
+# Модульные тесты без БД и без JUnit: каждый test/*Test.java — main() с проверками (см. test/Check.java).
+#
+#   scripts/test.sh                      — все тесты
+#   scripts/test.sh ResultBufferTest     — только указанные
+set -e
+cd "$(dirname "$0")/.."
+
+rm -rf out/test && mkdir -p out/test
+javac -encoding UTF-8 -d out/test *.java test/*.java
+
+if [ $# -eq 0 ]; then
+    set -- $(cd test && ls *Test.java | sed 's/\.java$//')
+fi
+status=0
+for t in "$@"; do
+    echo "== $t"
+    java -Djava.awt.headless=true -cp out/test "$t" || status=1
+done
+exit $status
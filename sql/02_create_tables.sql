@@ -42,7 +42,10 @@ ALTER TABLE departments
 CREATE TABLE diagnoses (
     diagnosis_id serial PRIMARY KEY,
     name text NOT NULL,
-    treatment_notes text
+    treatment_notes text,
+    -- Полнотекстовый поиск (русская морфология); в таблице приложения не показывается
+    treatment_notes_tsv tsvector GENERATED ALWAYS AS
+        (to_tsvector('russian', coalesce(treatment_notes, ''))) STORED
 );
 
 CREATE TABLE patients (
@@ -68,17 +71,74 @@ CREATE TABLE appointments (
     status varchar(20) NOT NULL DEFAULT 'scheduled' 
         CHECK (status IN ('scheduled', 'completed', 'cancelled')),
     diagnosis_id int REFERENCES diagnoses(diagnosis_id),
-    notes text
+    notes text,
+    -- Длительность в минутах считается один раз при записи, а не в каждом отчёте; без округления —
+    -- отчёты округляют уже после AVG/SUM
+    duration_minutes numeric GENERATED ALWAYS AS
+        (EXTRACT(EPOCH FROM (appointment_end - appointment_start)) / 60) STORED,
+    notes_tsv tsvector GENERATED ALWAYS AS (to_tsvector('russian', coalesce(notes, ''))) STORED
 );
 
+-- Журнал событий приёмов: только добавление (см. trg_appointment_events_append_only).
+-- Без внешнего ключа — события переживают удаление самого приёма.
+CREATE TABLE appointment_events (
+    event_id bigserial PRIMARY KEY,
+    appointment_id int NOT NULL,
+    event_type varchar(20) NOT NULL CHECK (event_type IN ('cancelled')),
+    old_status varchar(20),
+    new_status varchar(20) NOT NULL,
+    occurred_at timestamptz NOT NULL DEFAULT now()
+);
+
+-- Журнал изменений данных: приложение пишет его пакетами (COPY) из фонового потока.
+-- diff — для I/D все поля строки, для U только изменённые: {"поле": [было, стало]}.
+-- Секции по месяцам (audit_log_create_partitions); строки вне созданных месяцев — в audit_log_default.
+CREATE TABLE audit_log (
+    audit_id bigint GENERATED ALWAYS AS IDENTITY,
+    changed_at timestamptz NOT NULL,
+    app_user text NOT NULL,
+    table_name text NOT NULL,
+    pk text,
+    op char(1) NOT NULL CHECK (op IN ('I', 'U', 'D')),
+    diff jsonb NOT NULL,
+    PRIMARY KEY (audit_id, changed_at)
+) PARTITION BY RANGE (changed_at);
+
+CREATE TABLE audit_log_default PARTITION OF audit_log DEFAULT;
+
+-- Месячные секции начиная с месяца from_month; уже существующие пропускаются.
+-- Вызывать заранее на следующие месяцы (например, раз в месяц по расписанию).
+CREATE OR REPLACE FUNCTION audit_log_create_partitions(from_month date, months int)
+RETURNS void AS $$
+DECLARE
+    m date;
+BEGIN
+    FOR i IN 0 .. months - 1 LOOP
+        m := date_trunc('month', from_month)::date + make_interval(months => i);
+        EXECUTE format('CREATE TABLE IF NOT EXISTS %I PARTITION OF audit_log FOR VALUES FROM (%L) TO (%L)',
+                       'audit_log_' || to_char(m, 'YYYY_MM'), m, m + INTERVAL '1 month');
+    END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT audit_log_create_partitions(CURRENT_DATE, 12);
+
 -- 2. Индексы 
 CREATE INDEX idx_patients_surname ON patients(surname);
 CREATE INDEX idx_patients_inn ON patients(inn);
-CREATE INDEX idx_appointments_doctor_start ON appointments(doctor_id, appointment_start);
+-- Покрывающий: отчёт «Приёмы по врачам» и панель нагрузки читают только индекс (Index Only Scan)
+CREATE INDEX idx_appointments_doctor_start ON appointments(doctor_id, appointment_start)
+    INCLUDE (status, duration_minutes);
 CREATE INDEX idx_appointments_patient_status ON appointments(patient_id, status);
 CREATE INDEX idx_departments_hospital ON departments(hospital_id);
 CREATE INDEX idx_doctors_hosp_dept ON doctors(hospital_id, department_id);
 CREATE INDEX idx_appointments_start ON appointments(appointment_start);
+-- Полнотекстовый поиск по заметкам (websearch_to_tsquery + @@)
+CREATE INDEX idx_appointments_notes_tsv ON appointments USING gin (notes_tsv);
+CREATE INDEX idx_diagnoses_treatment_notes_tsv ON diagnoses USING gin (treatment_notes_tsv);
+-- История изменений одной записи
+CREATE INDEX idx_audit_log_record ON audit_log(table_name, pk, changed_at);
+CREATE INDEX idx_appointment_events_appointment ON appointment_events(appointment_id, occurred_at);
 
 -- 3. VIEW
 
@@ -128,25 +188,148 @@ HAVING COUNT(d.doctor_id) >= 2
 ORDER BY h.name, dep.name;
 
 -- 4. ТРИГГЕР : 
--- При переводе приёма в статус 'cancelled' — автоматически дописать в notes дату/время отмены
+-- При переводе приёмов в статус 'cancelled' — записать событие отмены в appointment_events.
+-- Триггер уровня оператора: массовая отмена (UPDATE ... WHERE ...) даёт один вызов функции
+-- и одну вставку по таблицам переходов, а notes больше не переписываются.
 CREATE OR REPLACE FUNCTION log_appointment_cancellation()
 RETURNS TRIGGER AS $$
 BEGIN
-    -- Добавляем запись только при переходе в 'cancelled'
-    IF NEW.status = 'cancelled' AND (OLD.status IS DISTINCT FROM 'cancelled') THEN
-        NEW.notes := COALESCE(NEW.notes || '; ', '') 
-                   || 'Отменено в ' || TO_CHAR(NOW(), 'YYYY-MM-DD HH24:MI');
-    END IF;
-    RETURN NEW;
+    INSERT INTO appointment_events (appointment_id, event_type, old_status, new_status)
+    SELECT n.appointment_id, 'cancelled', o.status, n.status
+    FROM new_rows n
+    JOIN old_rows o USING (appointment_id)
+    WHERE n.status = 'cancelled' AND o.status IS DISTINCT FROM 'cancelled';
+    RETURN NULL;
 END;
 $$ LANGUAGE plpgsql;
 
+-- Таблицы переходов несовместимы со списком столбцов (UPDATE OF status), поэтому отбор — в функции
 CREATE TRIGGER trg_log_cancellation
-BEFORE UPDATE OF status ON appointments
-FOR EACH ROW
-WHEN (NEW.status = 'cancelled')
+AFTER UPDATE ON appointments
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT
 EXECUTE FUNCTION log_appointment_cancellation();
 
+-- appointment_events только дополняется: изменение и удаление событий запрещены
+CREATE OR REPLACE FUNCTION forbid_appointment_events_change()
+RETURNS TRIGGER AS $$
+BEGIN
+    RAISE EXCEPTION 'appointment_events: журнал только для добавления (%)', TG_OP;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_appointment_events_append_only
+BEFORE UPDATE OR DELETE OR TRUNCATE ON appointment_events
+FOR EACH STATEMENT
+EXECUTE FUNCTION forbid_appointment_events_change();
+
+-- Уведомление клиентов об изменении приёма (онлайн-панель нагрузки врачей слушает канал appointment_changes).
+-- Триггеры уровня оператора: массовое изменение даёт один вызов и изменения, сложенные по
+-- (врач, начало, статус). Элемент — doctor_id,начало (epoch),статус,±приёмов,±минут; до 100
+-- элементов на уведомление (меньше 8000 байт), перед '#' — метка, чтобы одинаковые уведомления
+-- одной транзакции не слились. Если частей больше 20 — одно уведомление '*': пересобрать снимок.
+CREATE OR REPLACE FUNCTION notify_appointment_change()
+RETURNS TRIGGER AS $$
+DECLARE
+    changes text := CASE TG_OP
+        WHEN 'INSERT' THEN 'SELECT *, 1 AS sign FROM new_rows'
+        WHEN 'DELETE' THEN 'SELECT *, -1 AS sign FROM old_rows'
+        ELSE 'SELECT *, 1 AS sign FROM new_rows UNION ALL SELECT *, -1 FROM old_rows' END;
+    payload text;
+    parts bigint;
+BEGIN
+    FOR payload, parts IN EXECUTE format($q$
+        SELECT string_agg(entry, ';'), count(*) OVER ()
+        FROM (
+            SELECT concat_ws(',', doctor_id, EXTRACT(EPOCH FROM appointment_start)::bigint, status,
+                             SUM(sign), round(SUM(sign * duration_minutes), 6)) AS entry,
+                   (row_number() OVER () - 1) / 100 AS part
+            FROM (%s) c
+            GROUP BY doctor_id, appointment_start, status
+            HAVING SUM(sign) <> 0 OR SUM(sign * duration_minutes) <> 0
+        ) e
+        GROUP BY part
+        $q$, changes)
+    LOOP
+        IF parts > 20 THEN
+            PERFORM pg_notify('appointment_changes', '*');
+            RETURN NULL;
+        END IF;
+        PERFORM pg_notify('appointment_changes',
+            (EXTRACT(EPOCH FROM clock_timestamp()) * 1000000)::bigint || '#' || payload);
+    END LOOP;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Таблицы переходов допускаются только у триггера на одно событие — по триггеру на каждое
+CREATE TRIGGER trg_notify_appointment_insert
+AFTER INSERT ON appointments
+REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT
+EXECUTE FUNCTION notify_appointment_change();
+
+CREATE TRIGGER trg_notify_appointment_update
+AFTER UPDATE ON appointments
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT
+EXECUTE FUNCTION notify_appointment_change();
+
+CREATE TRIGGER trg_notify_appointment_delete
+AFTER DELETE ON appointments
+REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT
+EXECUTE FUNCTION notify_appointment_change();
+
+-- Журнал изменений для строк, которые удалила (ON DELETE CASCADE) или изменила (ON DELETE SET NULL)
+-- сама база: приложение о них не знает и в audit_log их не пишет. Каскад выполняется вложенным
+-- оператором, поэтому pg_trigger_depth() > 1; операторы самого приложения (глубина 1) журналирует
+-- клиент. app_user — hospital.app_user из параметров соединения приложения, иначе имя роли.
+-- TG_ARGV[0] — первичный ключ таблицы.
+CREATE OR REPLACE FUNCTION audit_cascade()
+RETURNS TRIGGER AS $$
+BEGIN
+    IF pg_trigger_depth() < 2 THEN
+        RETURN NULL;
+    END IF;
+    IF TG_OP = 'DELETE' THEN
+        INSERT INTO audit_log (changed_at, app_user, table_name, pk, op, diff)
+        SELECT clock_timestamp(), coalesce(current_setting('hospital.app_user', true), session_user),
+               TG_TABLE_NAME, o.r ->> TG_ARGV[0], 'D',
+               coalesce((SELECT jsonb_object_agg(key, value) FROM jsonb_each(o.r) WHERE key NOT LIKE '%\_tsv'), '{}')
+        FROM (SELECT to_jsonb(x) AS r FROM old_rows x) o;
+    ELSE
+        INSERT INTO audit_log (changed_at, app_user, table_name, pk, op, diff)
+        SELECT clock_timestamp(), coalesce(current_setting('hospital.app_user', true), session_user),
+               TG_TABLE_NAME, n.r ->> TG_ARGV[0], 'U',
+               coalesce((SELECT jsonb_object_agg(key, jsonb_build_array(o.r -> key, value)) FROM jsonb_each(n.r)
+                         WHERE key NOT LIKE '%\_tsv' AND value IS DISTINCT FROM o.r -> key), '{}')
+        FROM (SELECT to_jsonb(x) AS r FROM new_rows x) n
+        JOIN (SELECT to_jsonb(x) AS r FROM old_rows x) o ON o.r -> TG_ARGV[0] = n.r -> TG_ARGV[0]
+        WHERE n.r IS DISTINCT FROM o.r;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- hospitals → departments, doctors, appointments; patients, doctors, departments → appointments
+CREATE TRIGGER trg_audit_cascade_departments
+AFTER DELETE ON departments REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE FUNCTION audit_cascade('department_id');
+
+CREATE TRIGGER trg_audit_cascade_doctors
+AFTER DELETE ON doctors REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE FUNCTION audit_cascade('doctor_id');
+
+CREATE TRIGGER trg_audit_cascade_appointments
+AFTER DELETE ON appointments REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE FUNCTION audit_cascade('appointment_id');
+
+-- doctors → departments.head_doctor_id (ON DELETE SET NULL)
+CREATE TRIGGER trg_audit_cascade_departments_head
+AFTER UPDATE ON departments REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE FUNCTION audit_cascade('department_id');
+
 -- 5. Тестовые данные
 
 -- Должности
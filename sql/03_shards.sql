@@ -0,0 +1,39 @@
+-- Подготовка одной базы-шарда. Выполняется после 02_create_tables.sql в каждой базе-шарде:
+--
+--   psql -d hospital_shard1 -v shard=1 -v hospitals='{1}' -f sql/03_shards.sql
+--
+-- shard     — номер шарда из конфигурации приложения (shard.N.*), 1..16
+-- hospitals — больницы этого шарда (shard.N.hospitals), массив PostgreSQL
+--
+-- В шарде остаются отделения, врачи и приёмы только его больниц. hospitals, positions,
+-- diagnoses и patients реплицируются: в каждом шарде полная копия, приложение пишет их во все шарды.
+
+SELECT set_config('hospital.shard', :'shard', false);
+
+-- 1. Последовательности шардированных таблиц чередуются: шаг 16, остаток — номер шарда - 1.
+-- Новые id не пересекаются между шардами. Старт считается до удаления чужих строк — от
+-- максимума по всей сети (после 02_create_tables.sql во всех шардах одинаковые данные).
+DO $$
+DECLARE
+    shard int := current_setting('hospital.shard')::int;
+    t record;
+    next_id bigint;
+BEGIN
+    IF shard NOT BETWEEN 1 AND 16 THEN
+        RAISE EXCEPTION 'Номер шарда должен быть от 1 до 16, получено %', shard;
+    END IF;
+    FOR t IN SELECT * FROM (VALUES
+            ('departments', 'department_id'),
+            ('doctors', 'doctor_id'),
+            ('appointments', 'appointment_id')) AS v(tbl, col) LOOP
+        EXECUTE format('SELECT coalesce(max(%I), 0) FROM %I', t.col, t.tbl) INTO next_id;
+        next_id := (next_id / 16 + 1) * 16 + shard - 1;
+        EXECUTE format('ALTER SEQUENCE %s INCREMENT BY 16 RESTART WITH %s',
+                       pg_get_serial_sequence(t.tbl, t.col), next_id);
+    END LOOP;
+END $$;
+
+-- 2. Чужие больницы: приёмы, затем врачи (doctors → departments ON DELETE RESTRICT), затем отделения
+DELETE FROM appointments WHERE NOT (hospital_id = ANY (:'hospitals'::int[]));
+DELETE FROM doctors WHERE NOT (hospital_id = ANY (:'hospitals'::int[]));
+DELETE FROM departments WHERE NOT (hospital_id = ANY (:'hospitals'::int[]));
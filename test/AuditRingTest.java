@@ -0,0 +1,74 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class AuditRingTest {
+    public static void main(String[] args) throws Exception {
+        Check.run("порядок и заполнение", AuditRingTest::fifoAndFull);
+        Check.run("многократный оборот по кольцу", AuditRingTest::wrapAround);
+        Check.run("несколько производителей", AuditRingTest::concurrentProducers);
+        Check.exit();
+    }
+
+    static Hospital.AuditRecord record(long seq, String producer) {
+        return new Hospital.AuditRecord(seq, producer, "patients", null, null);
+    }
+
+    static void fifoAndFull() {
+        Hospital.AuditRing ring = new Hospital.AuditRing(8);
+        Check.equal(null, ring.poll(), "пустое");
+        for (int i = 0; i < 8; i++) Check.that(ring.offer(record(i, "p")), "запись " + i);
+        Check.that(!ring.offer(record(8, "p")), "переполнение");
+        Check.equal(0L, ring.poll().changedAtMillis, "первая");
+        Check.that(ring.offer(record(8, "p")), "место освободилось");
+        for (long i = 1; i <= 8; i++) Check.equal(i, ring.poll().changedAtMillis, "по порядку");
+        Check.equal(null, ring.poll(), "снова пустое");
+    }
+
+    static void wrapAround() {
+        Hospital.AuditRing ring = new Hospital.AuditRing(4);
+        long next = 0, expected = 0;
+        for (int round = 0; round < 10_000; round++) {
+            while (ring.offer(record(next, "p"))) next++;
+            for (int i = 0; i < 3; i++) Check.equal(expected++, ring.poll().changedAtMillis, "оборот " + round);
+        }
+    }
+
+    static void concurrentProducers() throws InterruptedException {
+        int producers = 4, perProducer = 200_000;
+        Hospital.AuditRing ring = new Hospital.AuditRing(1024);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            String name = String.valueOf(p);
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (long i = 0; i < perProducer; i++) {
+                    while (!ring.offer(record(i, name))) Thread.onSpinWait();
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        long[] nextSeq = new long[producers];
+        long received = 0;
+        while (received < (long) producers * perProducer) {
+            Hospital.AuditRecord r = ring.poll();
+            if (r == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            int p = Integer.parseInt(r.user);
+            // Записи одного производителя приходят по порядку, без пропусков и повторов
+            Check.equal(nextSeq[p]++, r.changedAtMillis, "производитель " + p);
+            received++;
+        }
+        for (Thread t : threads) t.join();
+        Check.equal(null, ring.poll(), "лишних записей нет");
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.Objects;
+
+/** Проверки для тестов без JUnit: каждый тест — метод, run() печатает итог, exit() — код возврата. */
+final class Check {
+    interface Test {
+        void run() throws Exception;
+    }
+
+    private static int failed;
+
+    private Check() {}
+
+    static void run(String name, Test test) {
+        try {
+            test.run();
+            System.out.println("ok   " + name);
+        } catch (Throwable e) {
+            failed++;
+            System.out.println("FAIL " + name + ": " + e);
+            e.printStackTrace(System.out);
+        }
+    }
+
+    static void exit() {
+        if (failed > 0) System.exit(1);
+    }
+
+    static void that(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    static void equal(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) throw new AssertionError(what + ": ожидалось " + expected + ", получено " + actual);
+    }
+}
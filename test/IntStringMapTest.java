@@ -0,0 +1,49 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class IntStringMapTest {
+    public static void main(String[] args) {
+        Check.run("get и put", IntStringMapTest::getAndPut);
+        Check.run("перезапись ключа", IntStringMapTest::overwrite);
+        Check.run("рост таблицы и сравнение с HashMap", IntStringMapTest::growMatchesHashMap);
+        Check.exit();
+    }
+
+    static void getAndPut() {
+        Hospital.IntStringMap map = new Hospital.IntStringMap();
+        Check.equal(null, map.get(1), "пустая");
+        map.put(0, "ноль");
+        map.put(-5, "минус пять");
+        map.put(Integer.MAX_VALUE, "max");
+        Check.equal("ноль", map.get(0), "ключ 0");
+        Check.equal("минус пять", map.get(-5), "отрицательный ключ");
+        Check.equal("max", map.get(Integer.MAX_VALUE), "MAX_VALUE");
+        Check.equal(null, map.get(5), "отсутствующий");
+    }
+
+    static void overwrite() {
+        Hospital.IntStringMap map = new Hospital.IntStringMap();
+        for (int i = 0; i < 100; i++) map.put(7, "v" + i);
+        Check.equal("v99", map.get(7), "последнее значение");
+        for (int i = 0; i < 7; i++) map.put(100 + i, "k" + i);
+        Check.equal("v99", map.get(7), "после заполнения");
+        Check.equal("k6", map.get(106), "соседний ключ");
+    }
+
+    static void growMatchesHashMap() {
+        Hospital.IntStringMap map = new Hospital.IntStringMap();
+        Map<Integer, String> expected = new HashMap<>();
+        Random rnd = new Random(42);
+        for (int i = 0; i < 50_000; i++) {
+            // Ключи кратны 1024 — одинаковые младшие биты, проверка перемешивания в mix()
+            int key = rnd.nextInt(20_000) * 1024;
+            map.put(key, "v" + i);
+            expected.put(key, "v" + i);
+        }
+        for (Map.Entry<Integer, String> e : expected.entrySet()) {
+            Check.equal(e.getValue(), map.get(e.getKey()), "ключ " + e.getKey());
+        }
+        Check.equal(null, map.get(1), "некратный ключ");
+    }
+}
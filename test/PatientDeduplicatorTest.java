@@ -0,0 +1,77 @@
+import java.time.LocalDate;
+import java.util.List;
+
+public class PatientDeduplicatorTest {
+    private static final LocalDate BIRTH = LocalDate.of(1980, 5, 17);
+
+    public static void main(String[] args) {
+        Check.run("Jaro-Winkler", PatientDeduplicatorTest::jaroWinkler);
+        Check.run("опечатка в ФИО при общих дате рождения и ИНН", PatientDeduplicatorTest::typoWithSameBirth);
+        Check.run("однофамильцы с разной датой рождения", PatientDeduplicatorTest::namesakes);
+        Check.run("общий телефон в другом формате", PatientDeduplicatorTest::phoneFormats);
+        Check.run("большой блок делится вторым ключом", PatientDeduplicatorTest::oversizedBlockSplit);
+        Check.run("слишком большой блок пропускается и считается", PatientDeduplicatorTest::oversizedBlockSkipped);
+        Check.exit();
+    }
+
+    static void jaroWinkler() {
+        Check.that(Math.abs(Hospital.PatientDeduplicator.jaroWinkler("martha", "marhta") - 0.9611) < 1e-3, "martha/marhta");
+        Check.that(Math.abs(Hospital.PatientDeduplicator.jaroWinkler("dwayne", "duane") - 0.84) < 1e-3, "dwayne/duane");
+        Check.equal(1.0, Hospital.PatientDeduplicator.jaroWinkler("иванов", "иванов"), "одинаковые");
+        Check.equal(0.0, Hospital.PatientDeduplicator.jaroWinkler("", ""), "пустые не совпадают");
+        Check.equal(0.0, Hospital.PatientDeduplicator.jaroWinkler("абв", "где"), "без общих букв");
+    }
+
+    static void typoWithSameBirth() {
+        Hospital.PatientDeduplicator d = new Hospital.PatientDeduplicator(3);
+        d.add(10, "Иванов", "Пётр", "Сергеевич", BIRTH, "770100000001", null);
+        d.add(11, "Иванов", "Петр", "Сергеевичь", BIRTH, "770100000001", null);
+        d.add(12, "Иванов", "Олег", "Игоревич", BIRTH, null, null);
+        List<Hospital.PatientDeduplicator.Pair> pairs = d.findDuplicates(0.85).pairs;
+        Check.equal(1, pairs.size(), "пар");
+        Hospital.PatientDeduplicator.Pair p = pairs.get(0);
+        Check.equal(10, p.keepId, "остаётся ранняя регистрация");
+        Check.equal(11, p.duplicateId, "дубликат");
+        Check.equal("дата рождения, ИНН", p.matched, "совпало");
+    }
+
+    static void namesakes() {
+        Hospital.PatientDeduplicator d = new Hospital.PatientDeduplicator(2);
+        d.add(1, "Смирнов", "Алексей", "Иванович", BIRTH, null, "+7 900 000-00-01");
+        d.add(2, "Смирнов", "Алексей", "Иванович", BIRTH.plusYears(30), null, "+7 900 000-00-01");
+        // Общий телефон сводит их в блок, но разные даты рождения снимают 0.15
+        Check.equal(0, d.findDuplicates(0.85).pairs.size(), "пар");
+    }
+
+    static void phoneFormats() {
+        Hospital.PatientDeduplicator d = new Hospital.PatientDeduplicator(2);
+        d.add(1, "Кузнецова", "Анна", "Павловна", BIRTH, null, "+7 (912) 345-67-89");
+        d.add(2, "Кузнецова", "Анна", "Павловна", BIRTH, null, "8 912 345 67 89");
+        List<Hospital.PatientDeduplicator.Pair> pairs = d.findDuplicates(0.85).pairs;
+        Check.equal(1, pairs.size(), "пар");
+        Check.equal("дата рождения, телефон", pairs.get(0).matched, "совпало");
+    }
+
+    static void oversizedBlockSplit() {
+        // 200 пациентов с ИНН-заглушкой: блок больше MAX_BLOCK, пара находится после разбиения
+        Hospital.PatientDeduplicator d = new Hospital.PatientDeduplicator(200);
+        for (int i = 0; i < 198; i++) {
+            d.add(i + 1, (char) ('а' + i % 32) + "фамилия" + i, "Имя" + i, "Отчество", null, "000000000000", null);
+        }
+        d.add(500, "Орлов", "Николай", "Петрович", null, "000000000000", null);
+        d.add(501, "Орлов", "Николай", "Петрович", null, "000000000000", null);
+        Hospital.PatientDeduplicator.Result result = d.findDuplicates(0.85);
+        Check.equal(1, result.pairs.size(), "пар");
+        Check.equal(500, result.pairs.get(0).keepId, "найденная пара");
+        Check.equal(0, result.skippedBlocks, "пропущено блоков");
+    }
+
+    static void oversizedBlockSkipped() {
+        // Одинаковые начало фамилии и имя: и после разбиения блок больше MAX_BLOCK
+        Hospital.PatientDeduplicator d = new Hospital.PatientDeduplicator(120);
+        for (int i = 0; i < 120; i++) d.add(i + 1, "Иванов" + i, "Иван", null, null, "000000000000", null);
+        Hospital.PatientDeduplicator.Result result = d.findDuplicates(0.85);
+        Check.equal(1, result.skippedBlocks, "пропущено блоков");
+        Check.equal(120, result.skippedRows, "пропущено записей");
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PatientSearchIndexTest {
+    public static void main(String[] args) {
+        Check.run("префикс фамилии, имени и ИНН", PatientSearchIndexTest::prefixes);
+        Check.run("фамилия важнее имени", PatientSearchIndexTest::fieldWeights);
+        Check.run("телефон с кодом страны и без", PatientSearchIndexTest::phone);
+        Check.run("изменение и удаление", PatientSearchIndexTest::updateAndDelete);
+        Check.run("после перестройки базы", PatientSearchIndexTest::afterRebuild);
+        Check.run("limit", PatientSearchIndexTest::limit);
+        Check.exit();
+    }
+
+    static Map<String, Object> patient(int id, String surname, String name, String patronymic, String inn, String phone) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("patient_id", id);
+        row.put("surname", surname);
+        row.put("name", name);
+        row.put("patronymic", patronymic);
+        row.put("inn", inn);
+        row.put("phone", phone);
+        return row;
+    }
+
+    @SafeVarargs
+    static Hospital.PatientSearchIndex index(Map<String, Object>... rows) {
+        Hospital.PatientSearchIndex index = new Hospital.PatientSearchIndex();
+        for (Map<String, Object> row : rows) index.apply(null, row);
+        return index;
+    }
+
+    static void prefixes() {
+        Hospital.PatientSearchIndex index = index(
+                patient(1, "Иванов", "Пётр", "Сергеевич", "770100000001", null),
+                patient(2, "Ивашкин", "Олег", null, null, null),
+                patient(3, "Петров", "Иван", null, null, null));
+        Check.equal("[1, 2, 3]", sorted(index.search("ив", 10)), "«ив» — фамилии и имя");
+        Check.equal("[1]", Arrays.toString(index.search("иванов петр", 10)), "все слова, ё = е");
+        Check.equal("[1]", Arrays.toString(index.search("7701", 10)), "ИНН");
+        Check.equal("[]", Arrays.toString(index.search("сидоров", 10)), "нет совпадений");
+        Check.equal("[]", Arrays.toString(index.search("  ", 10)), "пустой запрос");
+    }
+
+    static void fieldWeights() {
+        Hospital.PatientSearchIndex index = index(
+                patient(1, "Петров", "Иван", null, null, null),
+                patient(2, "Иванов", "Пётр", null, null, null));
+        Check.equal("[2, 1]", Arrays.toString(index.search("иван", 10)), "совпадение в фамилии выше");
+    }
+
+    static void phone() {
+        Hospital.PatientSearchIndex index = index(
+                patient(1, "Иванов", "Пётр", null, null, "+7 (912) 345-67-89"),
+                patient(2, "Петров", "Иван", null, null, "8 912 111 22 33"));
+        Check.equal("[1]", Arrays.toString(index.search("89123456789", 10)), "8 вместо +7");
+        Check.equal("[1]", Arrays.toString(index.search("+7 912 345", 10)), "начало номера с кодом");
+        Check.equal("[1, 2]", sorted(index.search("912", 10)), "без кода страны");
+    }
+
+    static void updateAndDelete() {
+        Map<String, Object> before = patient(1, "Иванов", "Пётр", null, null, null);
+        Hospital.PatientSearchIndex index = index(before, patient(2, "Петров", "Иван", null, null, null));
+        Map<String, Object> after = new LinkedHashMap<>(before);
+        after.put("surname", "Сидоров");
+        index.apply(before, after);
+        Check.equal("[]", Arrays.toString(index.search("иванов", 10)), "старая фамилия не находится");
+        Check.equal("[1]", Arrays.toString(index.search("сидоров", 10)), "новая фамилия");
+        index.apply(after, null);
+        Check.equal("[]", Arrays.toString(index.search("сидоров", 10)), "удалённый");
+    }
+
+    static void afterRebuild() {
+        Hospital.PatientSearchIndex index = new Hospital.PatientSearchIndex();
+        // Больше MAX_DELTA вставок — база перестраивается, часть пациентов остаётся в дельте
+        for (int id = 1; id <= 5000; id++) index.apply(null, patient(id, "Фамилия" + id, "Имя", null, null, null));
+        Check.equal("[4321]", Arrays.toString(index.search("фамилия4321", 10)), "из базы");
+        Check.equal("[4999]", Arrays.toString(index.search("фамилия4999", 10)), "из дельты");
+        index.apply(patient(4321, "Фамилия4321", "Имя", null, null, null), null);
+        Check.equal("[]", Arrays.toString(index.search("фамилия4321", 10)), "удалённый из базы");
+        Check.equal(10, index.search("фамилия432", 20).length, "432, 4320, 4322..4329 — без удалённого");
+    }
+
+    static void limit() {
+        Hospital.PatientSearchIndex index = new Hospital.PatientSearchIndex();
+        for (int id = 1; id <= 50; id++) index.apply(null, patient(id, "Кузнецов", "Имя", null, null, null));
+        Check.equal(5, index.search("кузнецов", 5).length, "не больше limit");
+    }
+
+    private static String sorted(int[] ids) {
+        int[] copy = ids.clone();
+        Arrays.sort(copy);
+        return Arrays.toString(copy);
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+public class ResultBufferTest {
+    public static void main(String[] args) {
+        Check.run("типы ячеек", ResultBufferTest::cellTypes);
+        Check.run("переход из кучи на диск", ResultBufferTest::spill);
+        Check.run("строки у границы окна 64 МБ", ResultBufferTest::windowBoundary);
+        Check.run("произвольный доступ дальше кэша строк", ResultBufferTest::randomAccess);
+        Check.run("close() удаляет файлы", ResultBufferTest::closeDeletesFiles);
+        Check.exit();
+    }
+
+    static void cellTypes() {
+        Timestamp ts = Timestamp.valueOf("2024-03-01 10:15:30.123456789");
+        Object[] row = {null, 42, 1L << 40, (short) -7, 2.5, 1.25f, true, ts, java.sql.Date.valueOf("2024-02-29"),
+                new BigDecimal("12345.6789"), "Иванов Пётр"};
+        for (long budget : new long[]{1 << 20, 0}) {
+            try (Hospital.ResultBuffer buf = new Hospital.ResultBuffer(row.length, budget)) {
+                buf.append(row);
+                buf.finish();
+                Check.equal(Arrays.asList(row), Arrays.asList(buf.row(0)), "бюджет " + budget);
+            }
+        }
+    }
+
+    static void spill() {
+        try (Hospital.ResultBuffer buf = new Hospital.ResultBuffer(2, 1000)) {
+            for (int i = 0; i < 1000; i++) buf.append(new Object[]{i, "строка " + i});
+            buf.finish();
+            Check.equal(1000, buf.rowCount(), "rowCount");
+            for (int i : new int[]{0, 1, 10, 500, 999}) {
+                Check.equal(Arrays.asList(i, "строка " + i), Arrays.asList(buf.row(i)), "строка " + i);
+            }
+        }
+    }
+
+    static void windowBoundary() {
+        // ~70 МБ на диске: несколько строк не помещаются в остаток первого окна и начинаются со второго
+        char[] chars = new char[3 << 20];
+        try (Hospital.ResultBuffer buf = new Hospital.ResultBuffer(2, 0)) {
+            for (int i = 0; i < 24; i++) {
+                Arrays.fill(chars, (char) ('a' + i));
+                buf.append(new Object[]{i, new String(chars)});
+            }
+            buf.finish();
+            for (int i = 23; i >= 0; i--) {
+                Object[] row = buf.row(i);
+                Check.equal(i, row[0], "номер строки");
+                String s = (String) row[1];
+                Check.that(s.length() == chars.length && s.charAt(0) == 'a' + i && s.charAt(s.length() - 1) == 'a' + i,
+                        "содержимое строки " + i);
+            }
+        }
+    }
+
+    static void randomAccess() {
+        int n = 5000;
+        try (Hospital.ResultBuffer buf = new Hospital.ResultBuffer(3, 20_000)) {
+            for (int i = 0; i < n; i++) buf.append(new Object[]{i, i % 7 == 0 ? null : "п" + i, (double) i / 3});
+            buf.finish();
+            Random rnd = new Random(7);
+            for (int k = 0; k < 20_000; k++) {
+                int i = rnd.nextInt(n);
+                Object[] row = buf.row(i);
+                Check.equal(i, row[0], "id");
+                Check.equal(i % 7 == 0 ? null : "п" + i, row[1], "текст строки " + i);
+                Check.equal((double) i / 3, row[2], "число строки " + i);
+            }
+        }
+    }
+
+    static void closeDeletesFiles() throws IOException {
+        long before = spillFiles();
+        Hospital.ResultBuffer buf = new Hospital.ResultBuffer(1, 0);
+        for (int i = 0; i < 100; i++) buf.append(new Object[]{i});
+        buf.finish();
+        Check.equal(before + 2, spillFiles(), "файлы строк и смещений созданы");
+        buf.row(50);
+        buf.close();
+        Check.equal(before, spillFiles(), "файлов после close()");
+    }
+
+    private static long spillFiles() throws IOException {
+        Path tmp = Paths.get(System.getProperty("java.io.tmpdir"));
+        try (Stream<Path> files = Files.list(tmp)) {
+            return files.filter(p -> p.getFileName().toString().startsWith("hospital-result")).count();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class ShardMergeTest {
+    public static void main(String[] args) {
+        Check.run("без сортировки части идут подряд", ShardMergeTest::concatenation);
+        Check.run("строки по русской локали, NULL последними", ShardMergeTest::russianAscending);
+        Check.run("DESC: NULL первыми", ShardMergeTest::russianDescending);
+        Check.run("числа из нескольких шардов", ShardMergeTest::numbersMatchFullSort);
+        Check.run("пустые части", ShardMergeTest::emptyParts);
+        Check.exit();
+    }
+
+    static Hospital.TableData part(Object... sortValues) {
+        Hospital.ResultBuffer rows = new Hospital.ResultBuffer(2, 1 << 20);
+        for (int i = 0; i < sortValues.length; i++) rows.append(new Object[]{sortValues[i], i});
+        rows.finish();
+        return new Hospital.TableData(new String[]{"value", "n"}, rows);
+    }
+
+    static List<Object> column(Hospital.TableData data) {
+        List<Object> values = new ArrayList<>();
+        for (int r = 0; r < data.rows.rowCount(); r++) values.add(data.rows.row(r)[0]);
+        data.close();
+        return values;
+    }
+
+    static void concatenation() {
+        Hospital.TableData merged = Hospital.mergeShardData(List.of(part("в", "а"), part("б")), -1, false);
+        Check.equal(Arrays.asList("в", "а", "б"), column(merged), "порядок");
+    }
+
+    static void russianAscending() {
+        Hospital.TableData merged = Hospital.mergeShardData(
+                List.of(part("Ами", "ёж", "Щука", null), part("Борис", "ель", null)), 0, false);
+        Check.equal(Arrays.asList("Ами", "Борис", "ёж", "ель", "Щука", null, null), column(merged), "ASC");
+    }
+
+    static void russianDescending() {
+        Hospital.TableData merged = Hospital.mergeShardData(
+                List.of(part(null, "Щука", "ёж", "Ами"), part(null, "ель", "Борис")), 0, true);
+        Check.equal(Arrays.asList(null, null, "Щука", "ель", "ёж", "Борис", "Ами"), column(merged), "DESC");
+    }
+
+    static void numbersMatchFullSort() {
+        Random rnd = new Random(3);
+        List<Hospital.TableData> parts = new ArrayList<>();
+        List<Object> expected = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            Integer[] values = new Integer[rnd.nextInt(500)];
+            for (int i = 0; i < values.length; i++) values[i] = rnd.nextInt(1000) - 500;
+            Arrays.sort(values);
+            parts.add(part((Object[]) values));
+            expected.addAll(Arrays.asList(values));
+        }
+        expected.sort(Comparator.comparingInt(v -> (Integer) v));
+        Check.equal(expected, column(Hospital.mergeShardData(parts, 0, false)), "слияние");
+    }
+
+    static void emptyParts() {
+        Hospital.TableData merged = Hospital.mergeShardData(List.of(part(), part(2L, 5L), part()), 0, false);
+        Check.equal(Arrays.asList(2L, 5L), column(merged), "только непустая часть");
+    }
+}